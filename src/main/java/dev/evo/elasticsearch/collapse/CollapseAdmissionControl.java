@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the total cost of collapse requests that are executed concurrently on a coordinating node.
+ *
+ * Cost of a request is estimated as its window size multiplied by the number of shards it targets.
+ * Requests that do not fit into the limit wait in a bounded queue and are rejected
+ * when the queue is full. Queued requests are failed when they wait longer than the queue timeout
+ * or when their tasks are cancelled.
+ */
+public class CollapseAdmissionControl implements ToXContentObject {
+    // Zero disables admission control
+    public static final Setting<Long> COLLAPSE_ADMISSION_MAX_COST = Setting.longSetting(
+        "collapse.admission.max_cost", 0, 0, Setting.Property.NodeScope
+    );
+
+    public static final Setting<Integer> COLLAPSE_ADMISSION_MAX_QUEUE_SIZE = Setting.intSetting(
+        "collapse.admission.max_queue_size", 100, 0, Setting.Property.NodeScope
+    );
+
+    public static final Setting<TimeValue> COLLAPSE_ADMISSION_QUEUE_TIMEOUT = Setting.positiveTimeSetting(
+        "collapse.admission.queue_timeout", TimeValue.timeValueSeconds(30), Setting.Property.NodeScope
+    );
+
+    // Tasks cannot notify about their cancellation, so queued requests check them periodically
+    private static final TimeValue CANCELLATION_CHECK_INTERVAL = TimeValue.timeValueSeconds(1);
+
+    private static final Releasable NOOP_PERMIT = () -> {};
+
+    private static final class Pending {
+        final long cost;
+        final Task task;
+        final ActionListener<Releasable> listener;
+        final long deadlineNanos;
+        volatile Scheduler.ScheduledCancellable check;
+
+        Pending(long cost, Task task, ActionListener<Releasable> listener, long deadlineNanos) {
+            this.cost = cost;
+            this.task = task;
+            this.listener = listener;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        boolean isCancelled() {
+            return task instanceof CancellableTask && ((CancellableTask) task).isCancelled();
+        }
+    }
+
+    private final long maxCost;
+    private final int maxQueueSize;
+    private final TimeValue queueTimeout;
+    private final ThreadPool threadPool;
+
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private long runningCost;
+    private long runningRequests;
+    private long admittedTotal;
+    private long queuedTotal;
+    private long rejectedTotal;
+    private long timedOutTotal;
+    private long cancelledTotal;
+
+    public CollapseAdmissionControl(Settings settings, ThreadPool threadPool) {
+        this.maxCost = COLLAPSE_ADMISSION_MAX_COST.get(settings);
+        this.maxQueueSize = COLLAPSE_ADMISSION_MAX_QUEUE_SIZE.get(settings);
+        this.queueTimeout = COLLAPSE_ADMISSION_QUEUE_TIMEOUT.get(settings);
+        this.threadPool = threadPool;
+    }
+
+    public boolean enabled() {
+        return maxCost > 0;
+    }
+
+    /**
+     * Notifies the listener with a permit as soon as the request can be executed.
+     * The permit must be released when the request is completed.
+     *
+     * A queued request is resumed with the thread context it was queued with.
+     */
+    public void acquire(long cost, Task task, ActionListener<Releasable> listener) {
+        if (!enabled()) {
+            listener.onResponse(NOOP_PERMIT);
+            return;
+        }
+
+        // A single request that is heavier than the limit is allowed to run alone
+        final var requestCost = Math.max(1, Math.min(cost, maxCost));
+        final List<Pending> failed;
+        String rejection = null;
+        Pending pending = null;
+        synchronized (this) {
+            failed = removeCancelled();
+            if (queue.isEmpty() && runningCost + requestCost <= maxCost) {
+                admit(requestCost);
+            } else if (queue.size() < maxQueueSize) {
+                pending = new Pending(
+                    requestCost,
+                    task,
+                    new ContextPreservingActionListener<>(
+                        threadPool.getThreadContext().newRestorableContext(false), listener
+                    ),
+                    threadPool.relativeTimeInNanos() + queueTimeout.nanos()
+                );
+                queue.add(pending);
+                queuedTotal++;
+            } else {
+                rejectedTotal++;
+                rejection = String.format(
+                    Locale.ENGLISH,
+                    "rejected collapse request with cost [%s]: running cost [%s], max cost [%s], queue size [%s]",
+                    cost, runningCost, maxCost, queue.size()
+                );
+            }
+        }
+        failCancelled(failed);
+        if (pending != null) {
+            scheduleCheck(pending);
+            return;
+        }
+        if (rejection != null) {
+            listener.onFailure(new EsRejectedExecutionException(rejection));
+            return;
+        }
+        listener.onResponse(permit(requestCost));
+    }
+
+    private void admit(long cost) {
+        runningCost += cost;
+        runningRequests++;
+        admittedTotal++;
+    }
+
+    private Releasable permit(long cost) {
+        final var released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                release(cost);
+            }
+        };
+    }
+
+    private void release(long cost) {
+        synchronized (this) {
+            runningCost -= cost;
+            runningRequests--;
+        }
+        drain();
+    }
+
+    /**
+     * Admits queued requests while they fit into the limit.
+     */
+    private void drain() {
+        final var admitted = new ArrayList<Pending>();
+        final List<Pending> failed;
+        synchronized (this) {
+            failed = removeCancelled();
+            while (!queue.isEmpty() && runningCost + queue.peek().cost <= maxCost) {
+                final var pending = queue.poll();
+                admit(pending.cost);
+                admitted.add(pending);
+            }
+        }
+        failCancelled(failed);
+        for (var pending : admitted) {
+            if (pending.check != null) {
+                pending.check.cancel();
+            }
+            final var permit = permit(pending.cost);
+            // Release happens on a thread that completes a search, so do not start new ones on it
+            threadPool.generic().execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() {
+                    pending.listener.onResponse(permit);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    // The permit is lost when the request is not started
+                    permit.close();
+                    pending.listener.onFailure(e);
+                }
+            });
+        }
+    }
+
+    private List<Pending> removeCancelled() {
+        assert Thread.holdsLock(this);
+        List<Pending> cancelled = null;
+        for (var it = queue.iterator(); it.hasNext();) {
+            final var pending = it.next();
+            if (pending.isCancelled()) {
+                it.remove();
+                cancelledTotal++;
+                if (cancelled == null) {
+                    cancelled = new ArrayList<>();
+                }
+                cancelled.add(pending);
+            }
+        }
+        return cancelled != null ? cancelled : List.of();
+    }
+
+    private static void failCancelled(List<Pending> cancelled) {
+        for (var pending : cancelled) {
+            if (pending.check != null) {
+                pending.check.cancel();
+            }
+            pending.listener.onFailure(new TaskCancelledException("collapse request was cancelled while queued"));
+        }
+    }
+
+    private void scheduleCheck(Pending pending) {
+        final var remainingNanos = pending.deadlineNanos - threadPool.relativeTimeInNanos();
+        final var delay = TimeValue.timeValueNanos(
+            Math.max(0, Math.min(remainingNanos, CANCELLATION_CHECK_INTERVAL.nanos()))
+        );
+        pending.check = threadPool.schedule(() -> checkQueued(pending), delay, ThreadPool.Names.GENERIC);
+    }
+
+    private void checkQueued(Pending pending) {
+        final boolean timedOut;
+        synchronized (this) {
+            if (!queue.contains(pending)) {
+                // Already admitted or failed
+                return;
+            }
+            timedOut = threadPool.relativeTimeInNanos() >= pending.deadlineNanos;
+            if (timedOut) {
+                queue.remove(pending);
+                timedOutTotal++;
+            }
+        }
+        if (timedOut) {
+            pending.listener.onFailure(new EsRejectedExecutionException(
+                "collapse request was queued for longer than [" + queueTimeout + "]"
+            ));
+            // Requests behind it might fit now
+            drain();
+        } else if (pending.isCancelled()) {
+            drain();
+        } else {
+            scheduleCheck(pending);
+        }
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("max_cost", maxCost);
+        builder.field("max_queue_size", maxQueueSize);
+        builder.field("queue_timeout", queueTimeout.getStringRep());
+        builder.field("running_cost", runningCost);
+        builder.field("running_requests", runningRequests);
+        builder.field("queue_size", queue.size());
+        builder.field("admitted_total", admittedTotal);
+        builder.field("queued_total", queuedTotal);
+        builder.field("rejected_total", rejectedTotal);
+        builder.field("timed_out_total", timedOutTotal);
+        builder.field("cancelled_total", cancelledTotal);
+        builder.endObject();
+        return builder;
+    }
+}
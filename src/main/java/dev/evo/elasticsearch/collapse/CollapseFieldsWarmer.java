@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse;
+
+import dev.evo.elasticsearch.collapse.rescore.GroupLeadersCache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexShardState;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Builds global ordinals and loads field data of the collapse fields for new readers,
+ * so that the first collapse request after a refresh or a merge does not pay for it.
+ *
+ * Plugins cannot add engine warmers, so new readers of the started shards are polled
+ * and warmed in the background on the warmer thread pool. Acquiring a searcher marks a shard
+ * as accessed, so search idle shards are skipped and stay idle.
+ * New readers also trigger a replay of the sampled collapse requests, see {@link CollapseReplayWarmer}.
+ * Group leaders missed by searches are built here as well, see {@link GroupLeadersCache}.
+ */
+public class CollapseFieldsWarmer implements IndexEventListener, Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(CollapseFieldsWarmer.class);
+
+    public static final Setting<List<String>> INDEX_COLLAPSE_WARM_FIELDS = Setting.listSetting(
+        "index.collapse.warm_fields",
+        List.of(),
+        Function.identity(),
+        Setting.Property.IndexScope,
+        Setting.Property.Dynamic
+    );
+
+    public static final Setting<TimeValue> COLLAPSE_WARMER_INTERVAL = Setting.timeSetting(
+        "collapse.warmer.interval",
+        TimeValue.timeValueSeconds(1),
+        TimeValue.timeValueMillis(100),
+        Setting.Property.NodeScope
+    );
+
+    private final TimeValue interval;
+    private final CollapseReplayWarmer replayWarmer;
+    private final GroupLeadersCache groupLeaders;
+    private final Map<Index, IndexService> indices = new ConcurrentHashMap<>();
+    // Last warmed reader of every shard
+    private final Map<ShardId, IndexReader.CacheKey> warmedReaders = new ConcurrentHashMap<>();
+    private volatile Scheduler.Cancellable task;
+
+    public CollapseFieldsWarmer(
+        Settings settings, CollapseReplayWarmer replayWarmer, GroupLeadersCache groupLeaders
+    ) {
+        this.interval = COLLAPSE_WARMER_INTERVAL.get(settings);
+        this.replayWarmer = replayWarmer;
+        this.groupLeaders = groupLeaders;
+    }
+
+    public void start(ThreadPool threadPool) {
+        task = threadPool.scheduleWithFixedDelay(this::warm, interval, ThreadPool.Names.WARMER);
+    }
+
+    @Override
+    public void close() {
+        final var task = this.task;
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    @Override
+    public void afterIndexCreated(IndexService indexService) {
+        indices.put(indexService.index(), indexService);
+    }
+
+    @Override
+    public void beforeIndexRemoved(IndexService indexService, IndexRemovalReason reason) {
+        indices.remove(indexService.index());
+    }
+
+    @Override
+    public void afterIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+        warmedReaders.remove(shardId);
+        groupLeaders.clear(shardId);
+    }
+
+    void warm() {
+        for (var indexService : indices.values()) {
+            final var fields = indexService.getIndexSettings().getValue(INDEX_COLLAPSE_WARM_FIELDS);
+            final var warmReaders = !fields.isEmpty() || replayWarmer.hasSamples(indexService.index());
+            for (var shard : indexService) {
+                if (shard.state() != IndexShardState.STARTED || shard.isSearchIdle()) {
+                    continue;
+                }
+                if (!warmReaders && !groupLeaders.hasRequestedLeaders(shard.shardId())) {
+                    continue;
+                }
+                try {
+                    warmShard(indexService, shard, fields);
+                } catch (Exception e) {
+                    LOGGER.warn(
+                        new ParameterizedMessage("failed to warm collapse fields {} of {}", fields, shard.shardId()),
+                        e
+                    );
+                }
+            }
+        }
+        replayWarmer.replay();
+    }
+
+    private void warmShard(IndexService indexService, IndexShard shard, List<String> fields) throws IOException {
+        final var shardId = shard.shardId();
+        try (var searcher = shard.acquireSearcher("collapse_warmer")) {
+            final var reader = searcher.getDirectoryReader();
+            final var readerKey = reader.getReaderCacheHelper().getKey();
+            if (readerKey.equals(warmedReaders.get(shardId))) {
+                // Leaders could be requested after the reader was warmed
+                groupLeaders.build(shardId, reader);
+                return;
+            }
+            final var context = indexService.newSearchExecutionContext(
+                shardId.id(), 0, searcher, System::currentTimeMillis, null, Map.of()
+            );
+            for (var field : fields) {
+                final var fieldType = context.getFieldType(field);
+                if (fieldType == null) {
+                    continue;
+                }
+                final var fieldData = context.getForField(fieldType);
+                if (fieldData instanceof IndexOrdinalsFieldData) {
+                    // Loads field data of every segment as well
+                    ((IndexOrdinalsFieldData) fieldData).loadGlobal(reader);
+                } else {
+                    for (var leaf : reader.leaves()) {
+                        fieldData.load(leaf);
+                    }
+                }
+            }
+            groupLeaders.build(shardId, reader);
+            warmedReaders.put(shardId, readerKey);
+            replayWarmer.onNewReader(shardId.getIndex());
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.SecureSetting;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the most frequent collapse requests of a coordinating node and replays them
+ * against the local shards that got new readers, so that field data, caches and the page cache
+ * are ready before the real traffic hits the shards.
+ *
+ * The most frequent requests are found with the space saving algorithm: when the sample is full
+ * a new request replaces the least frequent one and inherits its count.
+ * Requests are told apart by their indices and sources.
+ *
+ * Headers of the sampled requests are never kept. Requests are replayed in the system context
+ * or with the {@link #COLLAPSE_REPLAY_AUTHORIZATION} header configured in the keystore,
+ * and only against the local shards of the concrete indices that got new readers.
+ * Nodes that cannot hold shards do not sample requests.
+ *
+ * When {@link #COLLAPSE_REPLAY_PERSIST} is enabled the sample is stored in the node
+ * data path on shutdown and loaded on startup, so the replay also warms the shards after a restart.
+ * The stored request sources are plain text.
+ */
+public class CollapseReplayWarmer {
+    private static final Logger LOGGER = LogManager.getLogger(CollapseReplayWarmer.class);
+
+    // Zero disables the replay
+    public static final Setting<Integer> COLLAPSE_REPLAY_MAX_REQUESTS = Setting.intSetting(
+        "collapse.replay.max_requests", 0, 0, Setting.Property.NodeScope
+    );
+
+    public static final Setting<TimeValue> COLLAPSE_REPLAY_MIN_INTERVAL = Setting.timeSetting(
+        "collapse.replay.min_interval",
+        TimeValue.timeValueMinutes(1),
+        TimeValue.ZERO,
+        Setting.Property.NodeScope
+    );
+
+    // Request sources are stored in plain text, so storing them must be enabled explicitly
+    public static final Setting<Boolean> COLLAPSE_REPLAY_PERSIST = Setting.boolSetting(
+        "collapse.replay.persist", false, Setting.Property.NodeScope
+    );
+
+    // Replays are authorized with this header when it is set, for example with an API key
+    public static final Setting<SecureString> COLLAPSE_REPLAY_AUTHORIZATION = SecureSetting.secureString(
+        "collapse.replay.authorization", null
+    );
+
+    // Marks requests issued by the replay so they are not sampled
+    static final String REPLAY_TRANSIENT = "collapse_replay";
+
+    static final String SAMPLE_FILE_NAME = "collapse_replay.json";
+
+    private static final String AUTHORIZATION_HEADER = "Authorization";
+
+    static final class Sample {
+        final String[] indices;
+        final Set<String> concreteIndices;
+        final String source;
+        long count;
+
+        Sample(String[] indices, Set<String> concreteIndices, String source, long count) {
+            this.indices = indices;
+            this.concreteIndices = concreteIndices;
+            this.source = source;
+            this.count = count;
+        }
+    }
+
+    private final int maxRequests;
+    private final long minIntervalNanos;
+    private final boolean persist;
+    // Nodes that cannot hold shards never get new readers
+    private final boolean localShards;
+    private final String authorization;
+
+    private Client client;
+    private ClusterService clusterService;
+    private IndexNameExpressionResolver indexNameExpressionResolver;
+    private NamedXContentRegistry xContentRegistry;
+    private Path sampleFile;
+
+    private final Map<List<Object>, Sample> samples = new HashMap<>();
+    // Indices that got new readers since the last replay
+    private final Set<String> pendingIndices = new HashSet<>();
+    private boolean replaying;
+    private long lastReplayNanos;
+
+    public CollapseReplayWarmer(Settings settings) {
+        this.maxRequests = COLLAPSE_REPLAY_MAX_REQUESTS.get(settings);
+        this.minIntervalNanos = COLLAPSE_REPLAY_MIN_INTERVAL.get(settings).nanos();
+        this.persist = COLLAPSE_REPLAY_PERSIST.get(settings);
+        this.localShards = DiscoveryNode.canContainData(settings);
+        if (COLLAPSE_REPLAY_AUTHORIZATION.exists(settings)) {
+            try (var authorization = COLLAPSE_REPLAY_AUTHORIZATION.get(settings)) {
+                this.authorization = authorization.toString();
+            }
+        } else {
+            this.authorization = null;
+        }
+    }
+
+    public boolean enabled() {
+        return maxRequests > 0 && localShards;
+    }
+
+    public void start(
+        Client client,
+        ClusterService clusterService,
+        IndexNameExpressionResolver indexNameExpressionResolver,
+        NamedXContentRegistry xContentRegistry,
+        Path dataPath
+    ) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.xContentRegistry = xContentRegistry;
+        this.sampleFile = dataPath.resolve(SAMPLE_FILE_NAME);
+        if (enabled() && persist) {
+            load();
+        }
+    }
+
+    /**
+     * Samples a collapse request, must be called before the request source is modified.
+     */
+    public void record(SearchRequest searchRequest, SearchSourceBuilder source) {
+        if (!enabled() || client.threadPool().getThreadContext().getTransient(REPLAY_TRANSIENT) != null) {
+            return;
+        }
+        final var indices = searchRequest.indices();
+        final var sourceJson = source.toString();
+        final var key = sampleKey(indices, sourceJson);
+        synchronized (this) {
+            final var sample = samples.get(key);
+            if (sample != null) {
+                sample.count++;
+                return;
+            }
+        }
+        final Set<String> concreteIndices;
+        try {
+            concreteIndices = Set.of(
+                indexNameExpressionResolver.concreteIndexNames(clusterService.state(), searchRequest)
+            );
+        } catch (RuntimeException e) {
+            return;
+        }
+        synchronized (this) {
+            if (samples.containsKey(key)) {
+                samples.get(key).count++;
+                return;
+            }
+            var count = 1L;
+            if (samples.size() >= maxRequests) {
+                final var leastFrequent = samples.entrySet().stream()
+                    .min(Map.Entry.comparingByValue((a, b) -> Long.compare(a.count, b.count)))
+                    .orElseThrow();
+                samples.remove(leastFrequent.getKey());
+                count += leastFrequent.getValue().count;
+            }
+            samples.put(key, new Sample(indices, concreteIndices, sourceJson, count));
+        }
+    }
+
+    private static List<Object> sampleKey(String[] indices, String source) {
+        return List.of(List.of(indices), source);
+    }
+
+    /**
+     * Checks if any sampled request targets the index.
+     */
+    synchronized boolean hasSamples(Index index) {
+        for (var sample : samples.values()) {
+            if (sample.concreteIndices.contains(index.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called when a local shard of the index has got a new reader.
+     */
+    synchronized void onNewReader(Index index) {
+        if (enabled()) {
+            pendingIndices.add(index.getName());
+        }
+    }
+
+    /**
+     * Replays sampled requests that target indices with new readers, one request at a time.
+     * A request is replayed only against the local shards of those indices.
+     */
+    void replay() {
+        final var replays = new ArrayList<Replay>();
+        synchronized (this) {
+            if (replaying || System.nanoTime() - lastReplayNanos < minIntervalNanos) {
+                return;
+            }
+            for (var sample : samples.values()) {
+                final var indices = new ArrayList<String>();
+                for (var index : sample.concreteIndices) {
+                    if (pendingIndices.contains(index)) {
+                        indices.add(index);
+                    }
+                }
+                if (!indices.isEmpty()) {
+                    replays.add(new Replay(sample, indices.toArray(new String[0])));
+                }
+            }
+            pendingIndices.clear();
+            if (replays.isEmpty()) {
+                return;
+            }
+            replays.sort((a, b) -> Long.compare(b.sample.count, a.sample.count));
+            replaying = true;
+        }
+        replayNext(replays.iterator());
+    }
+
+    private static final class Replay {
+        final Sample sample;
+        // Concrete indices of the sample that have got new readers on this node
+        final String[] indices;
+
+        Replay(Sample sample, String[] indices) {
+            this.sample = sample;
+            this.indices = indices;
+        }
+    }
+
+    private void replayNext(Iterator<Replay> replays) {
+        if (!replays.hasNext()) {
+            synchronized (this) {
+                replaying = false;
+                lastReplayNanos = System.nanoTime();
+            }
+            store();
+            return;
+        }
+        final var replay = replays.next();
+        final var sample = replay.sample;
+        final SearchRequest searchRequest;
+        try {
+            searchRequest = new SearchRequest(replay.indices)
+                .source(parseSource(sample.source))
+                .preference("_only_local");
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug(new ParameterizedMessage("failed to parse sampled collapse request {}", sample.source), e);
+            replayNext(replays);
+            return;
+        }
+        final var threadContext = client.threadPool().getThreadContext();
+        final ThreadContext.StoredContext storedContext = threadContext.stashContext();
+        try {
+            // Nothing of the thread that triggered the replay is passed on
+            if (authorization != null) {
+                threadContext.putHeader(AUTHORIZATION_HEADER, authorization);
+            }
+            threadContext.putTransient(REPLAY_TRANSIENT, true);
+            client.search(searchRequest, ActionListener.wrap(
+                (SearchResponse response) -> replayNext(replays),
+                e -> {
+                    LOGGER.debug(new ParameterizedMessage("failed to replay collapse request {}", sample.source), e);
+                    replayNext(replays);
+                }
+            ));
+        } finally {
+            storedContext.restore();
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(sampleFile)) {
+            return;
+        }
+        try (var parser = XContentType.JSON.xContent().createParser(
+            NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, Files.newInputStream(sampleFile)
+        )) {
+            @SuppressWarnings("unchecked")
+            final var entries = (List<Map<String, Object>>) parser.map().get("samples");
+            synchronized (this) {
+                for (var entry : entries) {
+                    if (samples.size() >= maxRequests) {
+                        break;
+                    }
+                    @SuppressWarnings("unchecked")
+                    final var indices = ((List<String>) entry.get("indices")).toArray(new String[0]);
+                    @SuppressWarnings("unchecked")
+                    final var concreteIndices = Set.copyOf((List<String>) entry.get("concrete_indices"));
+                    final var source = (String) entry.get("source");
+                    final var count = ((Number) entry.get("count")).longValue();
+                    samples.put(
+                        sampleKey(indices, source),
+                        new Sample(indices, concreteIndices, source, count)
+                    );
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn(new ParameterizedMessage("failed to load sampled collapse requests from {}", sampleFile), e);
+        }
+    }
+
+    private SearchSourceBuilder parseSource(String source) throws IOException {
+        try (var parser = XContentType.JSON.xContent().createParser(
+            xContentRegistry, LoggingDeprecationHandler.INSTANCE, source
+        )) {
+            return SearchSourceBuilder.fromXContent(parser);
+        }
+    }
+
+    void store() {
+        if (!enabled() || !persist || sampleFile == null) {
+            return;
+        }
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.startObject();
+            builder.startArray("samples");
+            synchronized (this) {
+                for (var sample : samples.values()) {
+                    builder.startObject();
+                    builder.array("indices", sample.indices);
+                    builder.array("concrete_indices", sample.concreteIndices.toArray(new String[0]));
+                    builder.field("source", sample.source);
+                    builder.field("count", sample.count);
+                    builder.endObject();
+                }
+            }
+            builder.endArray();
+            builder.endObject();
+            Files.writeString(sampleFile, Strings.toString(builder));
+        } catch (IOException e) {
+            LOGGER.warn(new ParameterizedMessage("failed to store sampled collapse requests to {}", sampleFile), e);
+        }
+    }
+}
@@ -19,33 +19,70 @@
 package dev.evo.elasticsearch.collapse;
 
 import dev.evo.elasticsearch.collapse.rescore.CollapseRescorerBuilder;
+import dev.evo.elasticsearch.collapse.rescore.GroupScoreMode;
+import dev.evo.elasticsearch.collapse.rescore.GroupStatsFetchSubPhase;
 import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.cluster.node.tasks.cancel.CancelTasksRequest;
+import org.elasticsearch.action.admin.cluster.node.tasks.get.GetTaskAction;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.ActionFilter;
 import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.OriginSettingClient;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.indices.IndicesModule;
+import org.elasticsearch.search.DocValueFormat;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.InternalAggregation;
 import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.missing.Missing;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.internal.InternalSearchResponse;
 import org.elasticsearch.search.profile.SearchProfileShardResults;
+import org.elasticsearch.search.rescore.RescorerBuilder;
 import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.ScriptSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortMode;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.tasks.CancellableTask;
 import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.RemoteClusterAware;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class CollapseRescoreFilter implements ActionFilter {
     public static final Setting<Integer> COLLAPSE_RESCORE_FILTER_ORDER = Setting.intSetting(
@@ -54,6 +91,29 @@ public class CollapseRescoreFilter implements ActionFilter {
 
     private static final String SCRIPT_SORT_FIELD_NAME = "_collapse_script_sort";
 
+    // Marks retries with a wider window, they are already prepared for collapsing.
+    // Transients are not sent to other nodes, so a prepared request without the mark
+    // comes from a coordinator of a cross-cluster search
+    private static final String RETRY_TRANSIENT = "collapse_retry";
+
+    // Tasks cannot notify about their cancellation, so running retries check the original task periodically
+    private static final TimeValue RETRY_CANCELLATION_CHECK_INTERVAL = TimeValue.timeValueSeconds(1);
+
+    // Marks requests that the coordinator of a cross-cluster search with minimized round trips
+    // sends to remote clusters. Headers are sent to other nodes, transients are not
+    static final String REMOTE_COLLAPSE_HEADER = "_collapse_remote";
+
+    // Aggregations that are used to count total number of groups
+    private static final String TOTAL_GROUPS_AGG_NAME = "_collapse_total_groups";
+    private static final String MISSING_GROUPS_AGG_NAME = "_collapse_missing_groups";
+
+    // Lower bound of automatically calculated shard size for small pages
+    private static final int MIN_AUTO_SHARD_SIZE = 10;
+
+    // Placements of documents without a sort value, any other missing value replaces the absent one
+    private static final String MISSING_FIRST = "_first";
+    private static final String MISSING_LAST = "_last";
+
     @SuppressWarnings("unchecked")
     private static final Comparator<Object> ANY_COMPARATOR = (first, second) -> {
         if (first == null) {
@@ -68,22 +128,128 @@ public class CollapseRescoreFilter implements ActionFilter {
         return ((Comparable<Object>) first).compareTo(second);
     };
 
+    private static final Object[] NO_SORT_VALUES = new Object[0];
+    private static final DocValueFormat[] NO_SORT_VALUE_FORMATS = new DocValueFormat[0];
+    private static final DocValueFormat[] GROUP_KEY_FORMATS = new DocValueFormat[] {DocValueFormat.BINARY};
+
+    // Sort is stable so groups with equal scores keep their order
+    private static final Comparator<TopGroup> TOP_GROUP_COMPARATOR =
+        (a, b) -> Float.compare(b.score, a.score);
+
+    private static float shardMaxScore(SearchHit hit) {
+        final var stats = hit.getSortValues();
+        return stats.length == 3 ? ((Number) stats[0]).floatValue() : hit.getScore();
+    }
+
+    private static int shardGroupSize(SearchHit hit) {
+        final var stats = hit.getSortValues();
+        return stats.length == 3 ? ((Number) stats[1]).intValue() : 0;
+    }
+
+    /**
+     * Returns a binary group key passed by a shard as the last raw sort value,
+     * {@code null} if the hit has no group.
+     */
+    private static BytesRef shardGroupKey(SearchHit hit) {
+        final var rawSortValues = hit.getRawSortValues();
+        if (rawSortValues.length == 0) {
+            return null;
+        }
+        return (BytesRef) rawSortValues[rawSortValues.length - 1];
+    }
+
     static final class TopGroup {
-        final int collapsedIx;
-        Object sortValue;
+        // The most competitive hits of a group and their sort values
+        final List<SearchHit> hits = new ArrayList<>(1);
+        final List<Object> sortValues = new ArrayList<>(1);
         float score;
+        // Sum of the group sizes reported by shards
+        int groupSize;
+        // Group scores reported by shards, see GroupStatsFetchSubPhase
+        int numShardScores;
+        double shardScoreSum;
+        double weightedShardScoreSum;
+        long shardGroupSizeSum;
 
-        TopGroup(int collapsedIx, Object sortValue, float score) {
-            this.collapsedIx = collapsedIx;
-            this.sortValue = sortValue;
-            this.score = score;
+        TopGroup(SearchHit hit, Object sortValue) {
+            this.score = hit.getScore();
+            add(0, hit, sortValue);
+        }
+
+        void addGroupSize(SearchHit hit) {
+            final var groupSizeField = hit.field(GroupStatsFetchSubPhase.GROUP_SIZE_FIELD);
+            if (groupSizeField != null) {
+                groupSize += ((Number) groupSizeField.getValue()).intValue();
+            }
+        }
+
+        void addShardScore(SearchHit hit) {
+            final var shardGroupSize = shardGroupSize(hit);
+            if (shardGroupSize <= 0) {
+                // Only a top hit of a group holds the shard's group score
+                return;
+            }
+            numShardScores++;
+            shardScoreSum += hit.getScore();
+            weightedShardScoreSum += (double) hit.getScore() * shardGroupSize;
+            shardGroupSizeSum += shardGroupSize;
+        }
+
+        void combineScores(GroupScoreMode scoreMode) {
+            if (numShardScores == 0) {
+                return;
+            }
+            switch (scoreMode) {
+                case SUM:
+                case COUNT:
+                    score = (float) shardScoreSum;
+                    break;
+                case AVG:
+                    score = (float) (weightedShardScoreSum / shardGroupSizeSum);
+                    break;
+                default:
+                    // Hits come in score order so the first hit has the maximum score
+                    break;
+            }
+        }
+
+        void add(int position, SearchHit hit, Object sortValue) {
+            hits.add(position, hit);
+            sortValues.add(position, sortValue);
+        }
+
+        void trim(int maxSize) {
+            while (hits.size() > maxSize) {
+                hits.remove(hits.size() - 1);
+                sortValues.remove(sortValues.size() - 1);
+            }
         }
     }
 
     private final int order;
+    private final Client client;
+    private final ClusterService clusterService;
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+    private final CollapseAdmissionControl admissionControl;
+    private final CollapseSingleFlight<CollapsedResponse> singleFlight;
+    private final CollapseReplayWarmer replayWarmer;
 
-    public CollapseRescoreFilter(final Settings settings) {
+    public CollapseRescoreFilter(
+        final Settings settings,
+        final Client client,
+        final ClusterService clusterService,
+        final IndexNameExpressionResolver indexNameExpressionResolver,
+        final CollapseAdmissionControl admissionControl,
+        final CollapseSingleFlight<CollapsedResponse> singleFlight,
+        final CollapseReplayWarmer replayWarmer
+    ) {
         order = COLLAPSE_RESCORE_FILTER_ORDER.get(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.admissionControl = admissionControl;
+        this.singleFlight = singleFlight;
+        this.replayWarmer = replayWarmer;
     }
 
     @Override
@@ -123,180 +289,1098 @@ public class CollapseRescoreFilter implements ActionFilter {
 
         final var collapseExt = (CollapseSearchExtBuilder) searchExt.get();
 
-        source.from(0);
-        // Set size equal to window size thus we will get right number of docs after a merge
-        final var size = collapseExt.windowSize();
-        source.size(size);
+        if (findCollapseRescorer(source) != null) {
+            final var threadContext = client.threadPool().getThreadContext();
+            final var isRetry = threadContext.getTransient(RETRY_TRANSIENT) != null;
+            final var isRemote = threadContext.getHeader(REMOTE_COLLAPSE_HEADER) != null;
+            if (isRemote && !isRetry && canCollapseRemotely(collapseExt)) {
+                // A remote cluster of a cross-cluster search with minimized round trips
+                // sends back only group tops that are merged by the local coordinator
+                final var remoteCollapseContext = new CollapseContext(
+                    collapseExt,
+                    sortFields(collapseExt.getSorts()),
+                    reverseMuls(collapseExt.getSorts()),
+                    0,
+                    source.size(),
+                    1,
+                    Set.of()
+                );
+                @SuppressWarnings("unchecked")
+                final var searchListener = (ActionListener<SearchResponse>) listener;
+                chain.proceed(
+                    task, action, request, remoteCollapseListener(remoteCollapseContext, searchListener)
+                );
+                return;
+            }
+            // The request has already been prepared for collapsing,
+            // for instance it is a retry with a wider window
+            proceedPrepared(task, action, request, listener, chain);
+            return;
+        }
 
-        final var groupField = collapseExt.groupField();
-        source.docValueField(groupField);
+        final var groupFields = collapseExt.groupFields();
+        if (collapseExt.trackTotalGroups() && groupFields.size() > 1) {
+            listener.onFailure(new IllegalArgumentException(
+                "Tracking total groups is not supported for composite group keys"
+            ));
+            return;
+        }
+        if (collapseExt.exclude() != null && groupFields.size() > 1) {
+            listener.onFailure(new IllegalArgumentException(
+                "Excluding groups is not supported for composite group keys"
+            ));
+            return;
+        }
+        // Sample the request as it came from a client
+        replayWarmer.record(searchRequest, source);
+        final var singleFlightKey = singleFlight.enabled() ?
+            singleFlightKey(searchRequest, source, collapseExt, client.threadPool().getThreadContext().getHeaders()) :
+            null;
 
-        final var sorts = collapseExt.getSorts();
-        String tmpSortField = null;
-        int tmpReverseMul = 1;
-        if (!sorts.isEmpty()) {
-            final var sort = sorts.get(0);
-            if (sort.order() == SortOrder.DESC) {
-                tmpReverseMul = -1;
+        // Fields added only for collapsing are removed from the returned hits
+        final var requestedFields = requestedFields(source);
+        // Group fields are not needed, shards pass binary group keys
+        final var injectedFields = new HashSet<String>();
+        for (var level : collapseExt.levels()) {
+            if (!requestedFields.contains(level.field()) && injectedFields.add(level.field())) {
+                source.docValueField(level.field());
             }
+        }
+        if (collapseExt.trackTotalGroups()) {
+            // Documents without a group value make their own groups
+            final var groupField = groupFields.get(0);
+            source.aggregation(
+                AggregationBuilders.cardinality(TOTAL_GROUPS_AGG_NAME).field(groupField)
+            );
+            source.aggregation(
+                AggregationBuilders.missing(MISSING_GROUPS_AGG_NAME).field(groupField)
+            );
+        }
 
+        final var sorts = collapseExt.getSorts();
+        final var sortFields = sortFields(sorts);
+        final var reverseMuls = reverseMuls(sorts);
+        for (var i = 0; i < sorts.size(); i++) {
+            final var sort = sorts.get(i);
             // We cannot return a group sort value within search docs due to next check:
             // https://github.com/elastic/elasticsearch/blob/v6.8.13/
             // server/src/main/java/org/elasticsearch/search/query/QuerySearchResult.java#L130
-            // So we will calculate it one more time as a script field
+            // So we will calculate it one more time as a docvalue or a script field
+            final var sortField = sortFields.get(i);
+            if (requestedFields.contains(sortField) || !injectedFields.add(sortField)) {
+                continue;
+            }
             if (sort instanceof FieldSortBuilder) {
-                final var fieldSort = (FieldSortBuilder) sort;
-                tmpSortField = fieldSort.getFieldName();
-                source.docValueField(tmpSortField);
+                source.docValueField(sortField);
             } else if (sort instanceof ScriptSortBuilder) {
-                tmpSortField = SCRIPT_SORT_FIELD_NAME;
-                final var scriptSort = (ScriptSortBuilder) sort;
-                source.scriptField(tmpSortField, scriptSort.script());
+                source.scriptField(sortField, ((ScriptSortBuilder) sort).script());
+            }
+        }
+
+        final var numShards = collapseExt.autoShardSizing() || admissionControl.enabled() ?
+            numberOfShards(searchRequest) :
+            1;
+        final var collapseContext = new CollapseContext(
+            collapseExt, sortFields, reverseMuls, origFrom, origSize, numShards, injectedFields
+        );
+
+        source.from(0);
+        // Set size equal to window size thus we will get right number of docs after a merge
+        // When initial window size is set we start from it and widen the window only if needed
+        final var windowSize = collapseContext.initialWindowSize();
+        source.size(collapseContext.querySize(windowSize));
+
+        final var collapseRescorer = new CollapseRescorerBuilder(groupFields)
+            .windowSize(windowSize)
+            .shardSize(collapseContext.shardSize)
+            .maxPerGroup(collapseExt.maxPerGroup())
+            .trackGroupSize(collapseExt.trackGroupSize())
+            .scoreMode(collapseExt.scoreMode())
+            .levels(collapseExt.levels())
+            .exclude(collapseExt.exclude())
+            .setSorts(collapseExt.getSorts());
+        if (collapseExt.collapseFirst() && source.rescores() != null && !source.rescores().isEmpty()) {
+            // Collapse documents before user's rescorers so they will process
+            // only a single document per group
+            final var rescorers = new ArrayList<RescorerBuilder<?>>(source.rescores().size());
+            for (RescorerBuilder<?> rescorer : source.rescores()) {
+                rescorers.add(rescorer);
             }
+            source.clearRescorers();
+            source.addRescorer(collapseRescorer);
+            for (var rescorer : rescorers) {
+                source.addRescorer(rescorer);
+            }
+        } else {
+            source.addRescorer(collapseRescorer);
+        }
 
+        @SuppressWarnings("unchecked")
+        final var searchListener = (ActionListener<SearchResponse>) listener;
+        final ActionListener<CollapsedResponse> collapsedListener = searchListener.map(
+            collapsedResponse -> collapseContext.buildResponse(collapsedResponse, clusterService.state().metadata())
+        );
+        if (singleFlightKey != null) {
+            // When an identical request is already being executed its result is shared
+            singleFlight.execute(
+                singleFlightKey,
+                collapsedListener,
+                resultListener -> proceedCollapsing(
+                    task, action, request, searchRequest, collapseContext, numShards, resultListener, chain
+                )
+            );
+            return;
+        }
+        proceedCollapsing(task, action, request, searchRequest, collapseContext, numShards, collapsedListener, chain);
+    }
+
+    private <Request extends ActionRequest, Response extends ActionResponse> void proceedCollapsing(
+        Task task,
+        String action,
+        Request request,
+        SearchRequest searchRequest,
+        CollapseContext collapseContext,
+        int numShards,
+        ActionListener<CollapsedResponse> resultListener,
+        ActionFilterChain<Request, Response> chain
+    ) {
+        if (!admissionControl.enabled()) {
+            proceedPrepared(
+                task, action, request, collapseListener(task, searchRequest, collapseContext, resultListener), chain
+            );
+            return;
         }
-        final var sortField = tmpSortField;
-        final var reverseMul = tmpReverseMul;
 
-        source.addRescorer(
-            new CollapseRescorerBuilder(collapseExt.groupField())
-                .windowSize(collapseExt.windowSize())
-                .shardSize(collapseExt.shardSize())
-                .setSorts(collapseExt.getSorts())
+        final var cost = (long) collapseContext.maxWindowSize * numShards;
+        admissionControl.acquire(
+            cost,
+            task,
+            ActionListener.wrap(
+                permit -> proceedPrepared(
+                    task,
+                    action,
+                    request,
+                    collapseListener(
+                        task,
+                        searchRequest,
+                        collapseContext,
+                        ActionListener.runBefore(resultListener, permit::close)
+                    ),
+                    chain
+                ),
+                resultListener::onFailure
+            )
         );
+    }
 
-        var collapseListener = new ActionListener<Response>() {
+    /**
+     * Returns a key of identical requests or {@code null} if the request must not be shared.
+     * When the window does not depend on the page, requests of different pages share a key.
+     * Request headers carry credentials and the authenticated user, so only requests
+     * with the same headers are shared. Options of the search request that can change
+     * the result are part of the key too.
+     */
+    @SuppressWarnings("deprecation")
+    private static String singleFlightKey(
+        SearchRequest searchRequest,
+        SearchSourceBuilder source,
+        CollapseSearchExtBuilder collapseExt,
+        Map<String, String> headers
+    ) {
+        if (searchRequest.scroll() != null) {
+            return null;
+        }
+        var keySource = source;
+        if (!collapseExt.autoShardSizing() && collapseExt.initialWindowSize() <= 0) {
+            keySource = source.shallowCopy().from(0).size(0);
+        }
+        final var identityHeaders = new TreeMap<>(headers);
+        // Tracing id does not affect the result
+        identityHeaders.remove(Task.X_OPAQUE_ID);
+        return identityHeaders + "|" +
+            String.join(",", searchRequest.indices()) + "|" +
+            searchRequest.indicesOptions() + "|" +
+            searchRequest.routing() + "|" +
+            searchRequest.preference() + "|" +
+            searchRequest.searchType() + "|" +
+            String.join(",", searchRequest.types()) + "|" +
+            searchRequest.allowPartialSearchResults() + "|" +
+            searchRequest.requestCache() + "|" +
+            searchRequest.isCcsMinimizeRoundtrips() + "|" +
+            searchRequest.getBatchedReduceSize() + "|" +
+            keySource;
+    }
+
+    /**
+     * Names of the docvalue or script fields that hold values of the group sorts.
+     */
+    private static List<String> sortFields(List<SortBuilder<?>> sorts) {
+        final var sortFields = new ArrayList<String>(sorts.size());
+        for (var i = 0; i < sorts.size(); i++) {
+            final var sort = sorts.get(i);
+            if (sort instanceof FieldSortBuilder) {
+                sortFields.add(((FieldSortBuilder) sort).getFieldName());
+            } else if (sort instanceof ScriptSortBuilder) {
+                sortFields.add(i == 0 ? SCRIPT_SORT_FIELD_NAME : SCRIPT_SORT_FIELD_NAME + "_" + i);
+            }
+        }
+        return sortFields;
+    }
+
+    /**
+     * Names of the docvalue and script fields requested by a client.
+     */
+    private static Set<String> requestedFields(SearchSourceBuilder source) {
+        final var requestedFields = new HashSet<String>();
+        if (source.docValueFields() != null) {
+            for (var docValueField : source.docValueFields()) {
+                requestedFields.add(docValueField.field);
+            }
+        }
+        if (source.scriptFields() != null) {
+            for (var scriptField : source.scriptFields()) {
+                requestedFields.add(scriptField.fieldName());
+            }
+        }
+        return requestedFields;
+    }
+
+    private static int[] reverseMuls(List<SortBuilder<?>> sorts) {
+        final var reverseMuls = new int[sorts.size()];
+        for (var i = 0; i < sorts.size(); i++) {
+            reverseMuls[i] = sorts.get(i).order() == SortOrder.DESC ? -1 : 1;
+        }
+        return reverseMuls;
+    }
+
+    /**
+     * Modes that pick a sort value of multi-valued fields, the defaults match field sorts.
+     */
+    private static SortMode[] sortModes(List<SortBuilder<?>> sorts) {
+        final var sortModes = new SortMode[sorts.size()];
+        for (var i = 0; i < sorts.size(); i++) {
+            final var sort = sorts.get(i);
+            SortMode sortMode = null;
+            if (sort instanceof FieldSortBuilder) {
+                sortMode = ((FieldSortBuilder) sort).sortMode();
+            } else if (sort instanceof ScriptSortBuilder) {
+                sortMode = ((ScriptSortBuilder) sort).sortMode();
+            }
+            if (sortMode == null) {
+                sortMode = sort.order() == SortOrder.DESC ? SortMode.MAX : SortMode.MIN;
+            }
+            sortModes[i] = sortMode;
+        }
+        return sortModes;
+    }
+
+    private static Object[] missingSortValues(List<SortBuilder<?>> sorts) {
+        final var missingSortValues = new Object[sorts.size()];
+        for (var i = 0; i < sorts.size(); i++) {
+            final var sort = sorts.get(i);
+            Object missing = null;
+            if (sort instanceof FieldSortBuilder) {
+                missing = ((FieldSortBuilder) sort).missing();
+            }
+            missingSortValues[i] = missing != null ? missing : MISSING_LAST;
+        }
+        return missingSortValues;
+    }
+
+    private static CollapseRescorerBuilder findCollapseRescorer(SearchSourceBuilder source) {
+        if (source.rescores() == null) {
+            return null;
+        }
+        for (RescorerBuilder<?> rescorer : source.rescores()) {
+            if (rescorer instanceof CollapseRescorerBuilder) {
+                return (CollapseRescorerBuilder) rescorer;
+            }
+        }
+        return null;
+    }
+
+    private <Response extends ActionResponse> ActionListener<Response> collapseListener(
+        Task task,
+        SearchRequest searchRequest,
+        CollapseContext collapseContext,
+        ActionListener<CollapsedResponse> listener
+    ) {
+        return new ActionListener<>() {
             @Override
             public void onResponse(Response response) {
                 final var resp = (SearchResponse) response;
                 final var searchHits = resp.getHits();
                 final var hits = searchHits.getHits();
                 if (hits.length == 0) {
-                    listener.onResponse(response);
+                    listener.onResponse(new CollapsedResponse(resp, null));
                     return;
                 }
 
-                final var collapsedHits = new ArrayList<SearchHit>(hits.length);
-
-                if (sortField == null) {
-                    final var seenGroupValues = new HashSet<>();
-                    for (var hit : hits) {
-                        final var groupDocField = hit.field(groupField);
-                        if (groupDocField != null) {
-                            final var groupValue = groupDocField.getValue();
-                            if (groupValue != null) {
-                                if (seenGroupValues.add(groupValue)) {
-                                    collapsedHits.add(hit);
-                                }
-                                continue;
-                            }
+                final var collapsedHits = collapseContext.collapse(hits, false);
+
+                final var source = searchRequest.source();
+                final var collapseRescorer = findCollapseRescorer(source);
+                final var windowSize = collapseRescorer.windowSize();
+                final var nextWindowSize = collapseContext.nextWindowSize(
+                    windowSize, collapsedHits.size(), searchHits.getTotalHits()
+                );
+                if (nextWindowSize > windowSize) {
+                    if (task instanceof CancellableTask && ((CancellableTask) task).isCancelled()) {
+                        listener.onFailure(new TaskCancelledException("collapse request was cancelled before a retry"));
+                        return;
+                    }
+                    // Not enough groups to fill the page, retry with a wider window
+                    source.size(collapseContext.querySize(nextWindowSize));
+                    collapseRescorer.windowSize(nextWindowSize);
+                    // Retries are children of the original task, so they are listed and cancelled with it
+                    final var parentTaskId = new TaskId(clusterService.localNode().getId(), task.getId());
+                    searchRequest.setParentTask(parentTaskId);
+                    final var retryCancellation = task instanceof CancellableTask ?
+                        new RetryCancellation((CancellableTask) task, parentTaskId) :
+                        null;
+                    final var threadContext = client.threadPool().getThreadContext();
+                    // The response of the retry is handled within the context of this one
+                    final ActionListener<SearchResponse> retryListener =
+                        ContextPreservingActionListener.wrapPreservingContext(
+                            retryCancellation != null ?
+                                ActionListener.runBefore(
+                                    collapseListener(task, searchRequest, collapseContext, listener),
+                                    retryCancellation::stop
+                                ) :
+                                collapseListener(task, searchRequest, collapseContext, listener),
+                            threadContext
+                        );
+                    if (retryCancellation != null) {
+                        retryCancellation.schedule();
+                    }
+                    final var storedContext = threadContext.newStoredContext(false);
+                    try {
+                        if (threadContext.getTransient(RETRY_TRANSIENT) == null) {
+                            threadContext.putTransient(RETRY_TRANSIENT, true);
                         }
-                        collapsedHits.add(hit);
+                        client.search(searchRequest, retryListener);
+                    } finally {
+                        storedContext.restore();
                     }
+                    return;
+                }
+
+                listener.onResponse(new CollapsedResponse(resp, collapsedHits));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    /**
+     * Cancels retries of a cancelled request. Tasks that are executed on the local node
+     * are not cancelled together with their parent, so children of the original task
+     * are cancelled explicitly.
+     */
+    private final class RetryCancellation {
+        private final CancellableTask task;
+        private final TaskId parentTaskId;
+        private volatile boolean stopped;
+        private volatile Scheduler.ScheduledCancellable check;
+
+        RetryCancellation(CancellableTask task, TaskId parentTaskId) {
+            this.task = task;
+            this.parentTaskId = parentTaskId;
+        }
+
+        void schedule() {
+            if (stopped) {
+                return;
+            }
+            check = client.threadPool().schedule(
+                this::checkCancelled, RETRY_CANCELLATION_CHECK_INTERVAL, ThreadPool.Names.GENERIC
+            );
+        }
+
+        void stop() {
+            stopped = true;
+            final var check = this.check;
+            if (check != null) {
+                check.cancel();
+            }
+        }
+
+        private void checkCancelled() {
+            if (stopped) {
+                return;
+            }
+            if (!task.isCancelled()) {
+                schedule();
+                return;
+            }
+            final var cancelRequest = new CancelTasksRequest()
+                .setReason("collapse request was cancelled [" + task.getReasonCancelled() + "]");
+            cancelRequest.setParentTaskId(parentTaskId);
+            cancelRequest.setWaitForCompletion(false);
+            // Cancelled on behalf of the node the same way as tasks of closed REST channels
+            new OriginSettingClient(client, GetTaskAction.TASKS_ORIGIN).admin().cluster()
+                .cancelTasks(cancelRequest, ActionListener.wrap(() -> {}));
+        }
+    }
+
+    /**
+     * Proceeds with a request prepared for collapsing. When remote clusters of a cross-cluster search
+     * with minimized round trips receive the request, they are told to collapse their own hits.
+     */
+    private <Request extends ActionRequest, Response extends ActionResponse> void proceedPrepared(
+        Task task,
+        String action,
+        Request request,
+        ActionListener<Response> listener,
+        ActionFilterChain<Request, Response> chain
+    ) {
+        final var searchRequest = (SearchRequest) request;
+        if (!searchRequest.isCcsMinimizeRoundtrips() || !hasRemoteIndices(searchRequest)) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+        final var threadContext = client.threadPool().getThreadContext();
+        final var contextPreservingListener = new ContextPreservingActionListener<>(
+            threadContext.newRestorableContext(false), listener
+        );
+        final var storedContext = threadContext.newStoredContext(false);
+        try {
+            if (threadContext.getHeader(REMOTE_COLLAPSE_HEADER) == null) {
+                threadContext.putHeader(REMOTE_COLLAPSE_HEADER, "true");
+            }
+            chain.proceed(task, action, request, contextPreservingListener);
+        } finally {
+            storedContext.restore();
+        }
+    }
+
+    private static boolean hasRemoteIndices(SearchRequest searchRequest) {
+        for (var index : searchRequest.indices()) {
+            if (index.indexOf(RemoteClusterAware.REMOTE_CLUSTER_INDEX_SEPARATOR) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Group tops of remote clusters can be merged as long as they do not carry
+     * combined group scores or repeat group sizes in several hits of a group.
+     */
+    private static boolean canCollapseRemotely(CollapseSearchExtBuilder collapseExt) {
+        return collapseExt.scoreMode() == GroupScoreMode.MAX &&
+            (collapseExt.maxPerGroup() == 1 || !collapseExt.trackGroupSize());
+    }
+
+    /**
+     * Collapses hits of a remote cluster keeping everything that the local coordinator needs
+     * to merge them: all the groups of the window, document totals and partially reduced aggregations.
+     */
+    private static <Response extends ActionResponse> ActionListener<Response> remoteCollapseListener(
+        CollapseContext collapseContext,
+        ActionListener<SearchResponse> listener
+    ) {
+        return listener.map(response -> {
+            final var resp = (SearchResponse) response;
+            final var hits = resp.getHits().getHits();
+            if (hits.length == 0) {
+                return resp;
+            }
+            return collapseContext.buildRemoteResponse(resp, collapseContext.collapse(hits, true));
+        });
+    }
+
+    private int numberOfShards(SearchRequest searchRequest) {
+        final var state = clusterService.state();
+        final String[] indices;
+        try {
+            indices = indexNameExpressionResolver.concreteIndexNames(state, searchRequest);
+        } catch (RuntimeException e) {
+            // Let the search action report a proper error
+            return 1;
+        }
+        var numShards = 0;
+        for (var index : indices) {
+            final var indexMetadata = state.metadata().index(index);
+            if (indexMetadata != null) {
+                numShards += indexMetadata.getNumberOfShards();
+            }
+        }
+        return Math.max(numShards, 1);
+    }
+
+    /**
+     * Search response with all the collapsed hits, a page is cut from them for every request.
+     */
+    static final class CollapsedResponse {
+        final SearchResponse response;
+        // Missing when nothing has been found
+        final List<SearchHit> collapsedHits;
+
+        CollapsedResponse(SearchResponse response, List<SearchHit> collapsedHits) {
+            this.response = response;
+            this.collapsedHits = collapsedHits;
+        }
+
+        /**
+         * Hits are mutable so every request that shares the response gets its own copies.
+         */
+        CollapsedResponse copy() {
+            if (collapsedHits == null) {
+                return this;
+            }
+            final var hits = new ArrayList<SearchHit>(collapsedHits.size());
+            try (var out = new BytesStreamOutput()) {
+                for (var hit : collapsedHits) {
+                    hit.writeTo(out);
+                }
+                try (var in = out.bytes().streamInput()) {
+                    for (var i = 0; i < collapsedHits.size(); i++) {
+                        hits.add(new SearchHit(in));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new CollapsedResponse(response, hits);
+        }
+    }
+
+    static final class CollapseContext {
+        final CollapseSearchExtBuilder collapseExt;
+        // Docvalue or script fields that hold values of the group sorts
+        final List<String> sortFields;
+        final int[] reverseMuls;
+        final SortMode[] sortModes;
+        final Object[] missingSortValues;
+        final int from;
+        final int size;
+        // Window and shard sizes that are sent to every shard
+        final int maxWindowSize;
+        final int shardSize;
+        // Upper bound of the search request size, that is number of documents
+        // which the coordinator keeps after merging shard results
+        final int maxQuerySize;
+        // Docvalue and script fields that were not requested by a client
+        final Set<String> injectedFields;
+
+        CollapseContext(
+            CollapseSearchExtBuilder collapseExt,
+            List<String> sortFields,
+            int[] reverseMuls,
+            int origFrom,
+            int origSize,
+            int numShards,
+            Set<String> injectedFields
+        ) {
+            this.collapseExt = collapseExt;
+            this.injectedFields = injectedFields;
+            this.sortFields = sortFields;
+            this.reverseMuls = reverseMuls;
+            this.sortModes = sortModes(collapseExt.getSorts());
+            this.missingSortValues = missingSortValues(collapseExt.getSorts());
+            this.from = Math.max(origFrom, 0);
+            this.size = origSize <= 0 ? 10 : origSize;
+
+            if (collapseExt.autoShardSizing()) {
+                // Every shard is expected to contain its proportional part of the top groups,
+                // the oversampling factor covers a skew of groups distribution between shards
+                final var oversampling = collapseExt.oversampling();
+                final var pageSize = from + size;
+                final var shardPageSize = (int) Math.ceil(pageSize * oversampling / numShards);
+                this.shardSize = Math.min(
+                    collapseExt.shardSize(),
+                    Math.max(shardPageSize, Math.min(pageSize, MIN_AUTO_SHARD_SIZE))
+                );
+                final var shardWindowSize = (int) Math.ceil(
+                    collapseExt.windowSize() * oversampling / numShards
+                );
+                this.maxWindowSize = Math.min(
+                    collapseExt.windowSize(), Math.max(shardWindowSize, shardSize)
+                );
+                this.maxQuerySize = (int) Math.min(
+                    (long) shardSize * collapseExt.maxPerGroup() * numShards, collapseExt.windowSize()
+                );
+            } else {
+                this.shardSize = collapseExt.shardSize();
+                this.maxWindowSize = collapseExt.windowSize();
+                this.maxQuerySize = -1;
+            }
+        }
+
+        int initialWindowSize() {
+            if (collapseExt.initialWindowSize() > 0) {
+                return Math.min(collapseExt.initialWindowSize(), maxWindowSize);
+            }
+            return maxWindowSize;
+        }
+
+        int querySize(int windowSize) {
+            if (maxQuerySize > 0) {
+                // Shards return at most shard size groups, so there is no need
+                // to collect more documents than all the shards can return
+                return Math.min(windowSize, maxQuerySize);
+            }
+            return windowSize;
+        }
+
+        /**
+         * Collapses the hits. Remote clusters keep binary group keys of the hits
+         * so that the local coordinator could merge groups of all the clusters.
+         */
+        List<SearchHit> collapse(SearchHit[] hits, boolean keepGroupKeys) {
+            final var maxPerGroup = collapseExt.maxPerGroup();
+            // Groups in order of their scores, a hit without group value makes its own group
+            final var groups = new ArrayList<TopGroup>(hits.length);
+            // Shards and remote clusters pass binary group keys
+            final var topGroups = new HashMap<BytesRef, TopGroup>();
+            final var exclude = collapseExt.exclude();
+            final var excludeHash = exclude != null ? new MurmurHash3.Hash128() : null;
+
+            final var scoreMode = collapseExt.scoreMode();
+            // Shard scores are replaced with combined group scores, so without a sort
+            // documents of a group are ordered by their maximum scores reported by shards
+            final var sortByShardMaxScore = sortFields.isEmpty() && scoreMode != GroupScoreMode.MAX;
+
+            for (var hit : hits) {
+                final Object sortValue;
+                if (!sortFields.isEmpty()) {
+                    sortValue = sortValues(hit);
+                } else if (sortByShardMaxScore) {
+                    sortValue = shardMaxScore(hit);
                 } else {
-                    final var topGroups = new HashMap<Object, TopGroup>();
-
-                    // TODO: can we instantiate FieldComparator
-                    //  based on the type of the first sort value?
-                    //
-                    // final var firstSortValue = Arrays.stream(hits)
-                    //     .map(h -> h.field(sortField).getValue())
-                    //     .filter(Objects::nonNull)
-                    //     .findFirst();
-
-                    for (var hit : hits) {
-                        final var groupDocField = hit.field(groupField);
-                        if (groupDocField == null) {
-                            collapsedHits.add(hit);
-                            continue;
-                        }
+                    sortValue = null;
+                }
 
-                        final var groupValue = groupDocField.getValue();
-                        if (groupValue == null) {
-                            collapsedHits.add(hit);
-                            continue;
-                        }
+                final var groupKey = shardGroupKey(hit);
+                if (groupKey == null) {
+                    groups.add(new TopGroup(hit, sortValue));
+                    continue;
+                }
 
-                        final var topGroup = topGroups.get(groupValue);
-                        if (topGroup == null) {
-                            collapsedHits.add(hit);
-                            topGroups.put(
-                                groupValue,
-                                new TopGroup(
-                                    collapsedHits.size() - 1,
-                                    hit.field(sortField).getValue(),
-                                    hit.getScore()
-                                )
-                            );
-                            continue;
-                        }
+                var topGroup = topGroups.get(groupKey);
+                if (topGroup == null) {
+                    if (exclude != null && exclude.mightContain(groupKey, excludeHash)) {
+                        // Shards skip excluded groups, but return a hit of them
+                        // when there is nothing else
+                        continue;
+                    }
+                    topGroup = new TopGroup(hit, sortValue);
+                    groups.add(topGroup);
+                    topGroups.put(groupKey, topGroup);
+                    topGroup.addGroupSize(hit);
+                    if (scoreMode != GroupScoreMode.MAX) {
+                        topGroup.addShardScore(hit);
+                    }
+                    continue;
+                }
+                topGroup.addGroupSize(hit);
+                if (scoreMode != GroupScoreMode.MAX) {
+                    topGroup.addShardScore(hit);
+                }
 
-                        final var sortGroupField = hit.field(sortField);
-                        final var sortValue = sortGroupField.getValue();
-                        if (
-                            sortValue != null && topGroup.sortValue == null ||
-                            reverseMul * ANY_COMPARATOR.compare(topGroup.sortValue, sortValue) > 0
-                        ) {
-                            hit.score(topGroup.score);
-                            collapsedHits.set(topGroup.collapsedIx, hit);
-                            topGroup.sortValue = sortValue;
-                        }
+                if (sortFields.isEmpty() && !sortByShardMaxScore) {
+                    // Hits come in score order so the first ones are the most relevant
+                    if (topGroup.hits.size() < maxPerGroup) {
+                        topGroup.add(topGroup.hits.size(), hit, sortValue);
                     }
+                    continue;
                 }
 
-                var from = origFrom;
-                if (from <= 0) {
-                    from = 0;
+                var position = 0;
+                while (
+                    position < topGroup.hits.size() &&
+                    !isMoreCompetitive(sortValue, topGroup.sortValues.get(position))
+                ) {
+                    position++;
                 }
-                var size = origSize;
-                if (size <= 0) {
-                    size = 10;
+                if (position < maxPerGroup) {
+                    topGroup.add(position, hit, sortValue);
+                    topGroup.trim(maxPerGroup);
                 }
+            }
 
-                final var page = collapseExt.pagination() ?
-                    paginate(collapsedHits, from, size) :
-                    collapsedHits.toArray(new SearchHit[0]);
-                var totalHits = new TotalHits(collapsedHits.size(), TotalHits.Relation.EQUAL_TO);
+            if (scoreMode != GroupScoreMode.MAX) {
+                for (var group : groups) {
+                    group.combineScores(scoreMode);
+                }
+                groups.sort(TOP_GROUP_COMPARATOR);
+            }
 
-                final var internalResponse = new InternalSearchResponse(
-                    new SearchHits(
-                        page, totalHits, searchHits.getMaxScore()
-                    ),
-                    (InternalAggregations) resp.getAggregations(),
-                    resp.getSuggest(),
-                    new SearchProfileShardResults(resp.getProfileResults()),
-                    resp.isTimedOut(),
-                    resp.isTerminatedEarly(),
-                    resp.getNumReducePhases()
+            final var collapsedHits = new ArrayList<SearchHit>(hits.length);
+            for (var group : limitLevelGroups(groups)) {
+                for (var hit : group.hits) {
+                    // Hits of a group borrow the score of the most relevant one
+                    hit.score(group.score);
+                    final var groupKey = shardGroupKey(hit);
+                    if (keepGroupKeys && groupKey != null) {
+                        hit.sortValues(new Object[] {groupKey}, GROUP_KEY_FORMATS);
+                    } else {
+                        // Clear group keys and statistics passed by shards
+                        hit.sortValues(NO_SORT_VALUES, NO_SORT_VALUE_FORMATS);
+                    }
+                    if (group.groupSize > 0) {
+                        // Every shard reports a size of its part of the group
+                        final var groupSizeField = GroupStatsFetchSubPhase.GROUP_SIZE_FIELD;
+                        hit.setDocumentField(
+                            groupSizeField,
+                            new DocumentField(groupSizeField, List.of(group.groupSize))
+                        );
+                    }
+                    collapsedHits.add(hit);
+                }
+            }
+            return collapsedHits;
+        }
+
+        /**
+         * Keeps groups in score order while every level value has room for one more group.
+         */
+        private List<TopGroup> limitLevelGroups(List<TopGroup> groups) {
+            final var levels = collapseExt.levels();
+            if (levels.isEmpty()) {
+                return groups;
+            }
+            final var levelGroupCounts = new ArrayList<HashMap<Object, Integer>>(levels.size());
+            for (var i = 0; i < levels.size(); i++) {
+                levelGroupCounts.add(new HashMap<>());
+            }
+            final var levelValues = new Object[levels.size()];
+            final var keptGroups = new ArrayList<TopGroup>(groups.size());
+            for (var group : groups) {
+                final var topHit = group.hits.get(0);
+                var isFull = false;
+                for (var i = 0; i < levels.size(); i++) {
+                    final var levelDocField = topHit.field(levels.get(i).field());
+                    levelValues[i] = levelDocField != null ? levelDocField.getValue() : null;
+                    if (
+                        levelValues[i] != null &&
+                        levelGroupCounts.get(i).getOrDefault(levelValues[i], 0) >= levels.get(i).maxGroups()
+                    ) {
+                        isFull = true;
+                    }
+                }
+                if (isFull) {
+                    continue;
+                }
+                for (var i = 0; i < levels.size(); i++) {
+                    if (levelValues[i] != null) {
+                        levelGroupCounts.get(i).merge(levelValues[i], 1, Integer::sum);
+                    }
+                }
+                keptGroups.add(group);
+            }
+            return keptGroups;
+        }
+
+        /**
+         * Returns sort values of the hit, {@code null} for a missing value
+         * that goes either first or last.
+         */
+        private Object[] sortValues(SearchHit hit) {
+            final var sortValues = new Object[sortFields.size()];
+            for (var i = 0; i < sortValues.length; i++) {
+                final var sortDocField = hit.field(sortFields.get(i));
+                final var values = sortDocField != null ? sortDocField.getValues() : List.of();
+                final var missing = missingSortValues[i];
+                if (!values.isEmpty()) {
+                    sortValues[i] = sortValue(values, sortModes[i]);
+                } else if (!MISSING_FIRST.equals(missing) && !MISSING_LAST.equals(missing)) {
+                    sortValues[i] = missing;
+                }
+            }
+            return sortValues;
+        }
+
+        private static Object sortValue(List<Object> values, SortMode sortMode) {
+            if (values.size() == 1) {
+                return values.get(0);
+            }
+            switch (sortMode) {
+                case MIN:
+                case MAX:
+                    var sortValue = values.get(0);
+                    for (var i = 1; i < values.size(); i++) {
+                        final var cmp = compareValues(values.get(i), sortValue);
+                        if (sortMode == SortMode.MIN ? cmp < 0 : cmp > 0) {
+                            sortValue = values.get(i);
+                        }
+                    }
+                    return sortValue;
+                case SUM:
+                case AVG:
+                    var sum = 0.0;
+                    for (var value : values) {
+                        sum += ((Number) value).doubleValue();
+                    }
+                    return sortMode == SortMode.SUM ? sum : sum / values.size();
+                case MEDIAN:
+                    final var sortedValues = values.stream()
+                        .mapToDouble(value -> ((Number) value).doubleValue())
+                        .sorted()
+                        .toArray();
+                    final var middle = sortedValues.length / 2;
+                    return sortedValues.length % 2 == 0 ?
+                        (sortedValues[middle - 1] + sortedValues[middle]) / 2 :
+                        sortedValues[middle];
+                default:
+                    throw new IllegalArgumentException("Unsupported sort mode: " + sortMode);
+            }
+        }
+
+        private boolean isMoreCompetitive(Object sortValue, Object otherSortValue) {
+            if (sortFields.isEmpty()) {
+                // Maximum scores reported by shards are sorted in descending order
+                return (Float) sortValue > (Float) otherSortValue;
+            }
+            final var sortValues = (Object[]) sortValue;
+            final var otherSortValues = (Object[]) otherSortValue;
+            for (var i = 0; i < sortValues.length; i++) {
+                final var cmp = compareSortValues(
+                    sortValues[i], otherSortValues[i], reverseMuls[i], MISSING_FIRST.equals(missingSortValues[i])
                 );
-                @SuppressWarnings("unchecked") final var newResponse = (Response) new SearchResponse(
-                    internalResponse,
-                    resp.getScrollId(),
-                    resp.getTotalShards(),
-                    resp.getSuccessfulShards(),
-                    resp.getSkippedShards(),
-                    resp.getTook().millis(),
-                    resp.getShardFailures(),
-                    resp.getClusters()
+                if (cmp != 0) {
+                    return cmp < 0;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Compares sort values of the same sort, missing values go either first or last
+         * regardless of the sort order.
+         */
+        private static int compareSortValues(Object value, Object otherValue, int reverseMul, boolean missingFirst) {
+            if (value == null) {
+                if (otherValue == null) {
+                    return 0;
+                }
+                return missingFirst ? -1 : 1;
+            }
+            if (otherValue == null) {
+                return missingFirst ? 1 : -1;
+            }
+            return reverseMul * compareValues(value, otherValue);
+        }
+
+        private static int compareValues(Object value, Object otherValue) {
+            if (value instanceof Long && otherValue instanceof Long) {
+                return Long.compare((Long) value, (Long) otherValue);
+            }
+            // A missing value of a numeric sort can be passed as a string
+            if (value instanceof String && otherValue instanceof Number) {
+                value = parseNumber((String) value);
+            } else if (value instanceof Number && otherValue instanceof String) {
+                otherValue = parseNumber((String) otherValue);
+            }
+            if (value instanceof Number && otherValue instanceof Number) {
+                return Double.compare(
+                    ((Number) value).doubleValue(), ((Number) otherValue).doubleValue()
                 );
+            }
+            if (value instanceof String && otherValue instanceof String) {
+                return ((String) value).compareTo((String) otherValue);
+            }
+            return ANY_COMPARATOR.compare(value, otherValue);
+        }
 
-                listener.onResponse(newResponse);
+        private static Object parseNumber(String value) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return value;
             }
+        }
 
-            private SearchHit[] paginate(List<SearchHit> hits, int from, int size) {
-                var fromIndex = Math.min(from, hits.size());
-                var toIndex = Math.min(fromIndex + size, hits.size());
-                return hits
-                    .subList(fromIndex, toIndex)
-                    .toArray(new SearchHit[0]);
+        /**
+         * Returns a window size for the next try or {@code -1} if collapsed hits are good enough.
+         */
+        int nextWindowSize(int windowSize, int numCollapsedHits, TotalHits totalHits) {
+            if (windowSize >= maxWindowSize || numCollapsedHits >= from + size) {
+                return -1;
+            }
+            if (
+                totalHits != null &&
+                totalHits.relation == TotalHits.Relation.EQUAL_TO &&
+                totalHits.value <= windowSize
+            ) {
+                // All the matched documents have already been collapsed
+                return -1;
             }
+            return (int) Math.min(
+                (long) windowSize * collapseExt.windowGrowthFactor(), maxWindowSize
+            );
+        }
 
-            @Override
-            public void onFailure(Exception e) {
-                listener.onFailure(e);
+        SearchResponse buildResponse(CollapsedResponse collapsedResponse, Metadata metadata) {
+            if (collapsedResponse.collapsedHits == null) {
+                return collapseExt.trackTotalGroups() ?
+                    buildResponse(collapsedResponse.response, List.of(), metadata) :
+                    collapsedResponse.response;
             }
-        };
+            return buildResponse(collapsedResponse.response, collapsedResponse.collapsedHits, metadata);
+        }
+
+        SearchResponse buildResponse(SearchResponse resp, List<SearchHit> collapsedHits, Metadata metadata) {
+            final var searchHits = resp.getHits();
+            final var page = collapseExt.pagination() ?
+                paginate(collapsedHits, from, size) :
+                collapsedHits.toArray(new SearchHit[0]);
+            if (!injectedFields.isEmpty()) {
+                for (var i = 0; i < page.length; i++) {
+                    page[i] = withoutFields(page[i], injectedFields, metadata);
+                }
+            }
+            var totalGroups = (long) collapsedHits.size();
+            var aggregations = (InternalAggregations) resp.getAggregations();
+            if (collapseExt.trackTotalGroups() && aggregations != null) {
+                final Cardinality groupsCardinality = aggregations.get(TOTAL_GROUPS_AGG_NAME);
+                final Missing missingGroups = aggregations.get(MISSING_GROUPS_AGG_NAME);
+                if (groupsCardinality != null && missingGroups != null) {
+                    // Cardinality is approximate so it can be less than the number of collapsed hits
+                    totalGroups = Math.max(
+                        totalGroups, groupsCardinality.getValue() + missingGroups.getDocCount()
+                    );
+                }
+                aggregations = removeTotalGroupsAggregations(aggregations);
+            }
+            var totalHits = new TotalHits(totalGroups, TotalHits.Relation.EQUAL_TO);
+            var maxScore = searchHits.getMaxScore();
+            if (collapseExt.scoreMode() != GroupScoreMode.MAX && !collapsedHits.isEmpty()) {
+                // Group scores were combined from shard results
+                maxScore = collapsedHits.get(0).getScore();
+            }
+
+            final var internalResponse = new InternalSearchResponse(
+                new SearchHits(
+                    page, totalHits, maxScore
+                ),
+                aggregations,
+                resp.getSuggest(),
+                new SearchProfileShardResults(resp.getProfileResults()),
+                resp.isTimedOut(),
+                resp.isTerminatedEarly(),
+                resp.getNumReducePhases()
+            );
+            return new SearchResponse(
+                internalResponse,
+                resp.getScrollId(),
+                resp.getTotalShards(),
+                resp.getSuccessfulShards(),
+                resp.getSkippedShards(),
+                resp.getTook().millis(),
+                resp.getShardFailures(),
+                resp.getClusters()
+            );
+        }
+
+        SearchResponse buildRemoteResponse(SearchResponse resp, List<SearchHit> collapsedHits) {
+            final var searchHits = resp.getHits();
+            final var internalResponse = new InternalSearchResponse(
+                new SearchHits(
+                    collapsedHits.toArray(new SearchHit[0]), searchHits.getTotalHits(), searchHits.getMaxScore()
+                ),
+                (InternalAggregations) resp.getAggregations(),
+                resp.getSuggest(),
+                new SearchProfileShardResults(resp.getProfileResults()),
+                resp.isTimedOut(),
+                resp.isTerminatedEarly(),
+                resp.getNumReducePhases()
+            );
+            return new SearchResponse(
+                internalResponse,
+                resp.getScrollId(),
+                resp.getTotalShards(),
+                resp.getSuccessfulShards(),
+                resp.getSkippedShards(),
+                resp.getTook().millis(),
+                resp.getShardFailures(),
+                resp.getClusters()
+            );
+        }
+
+        private static InternalAggregations removeTotalGroupsAggregations(InternalAggregations aggregations) {
+            final var userAggregations = new ArrayList<InternalAggregation>();
+            for (var aggregation : aggregations.copyResults()) {
+                final var name = aggregation.getName();
+                if (!name.equals(TOTAL_GROUPS_AGG_NAME) && !name.equals(MISSING_GROUPS_AGG_NAME)) {
+                    userAggregations.add(aggregation);
+                }
+            }
+            if (userAggregations.isEmpty()) {
+                return null;
+            }
+            return InternalAggregations.from(userAggregations);
+        }
+
+        /**
+         * Copies the hit without the fields. Hits are shared between requests of a single flight
+         * and there is no way to remove a field from a hit, so the hit is rebuilt.
+         * Sort values are not copied as they are already cleared after collapsing.
+         */
+        private static SearchHit withoutFields(SearchHit hit, Set<String> fields, Metadata metadata) {
+            final var hitFields = hit.getFields();
+            if (!hitFields.keySet().removeAll(fields)) {
+                return hit;
+            }
+            final var metadataFields = IndicesModule.getBuiltInMetadataFields();
+            final var documentFields = new HashMap<String, DocumentField>();
+            final var metaFields = new HashMap<String, DocumentField>();
+            for (var field : hitFields.values()) {
+                if (metadataFields.contains(field.getName())) {
+                    metaFields.put(field.getName(), field);
+                } else {
+                    documentFields.put(field.getName(), field);
+                }
+            }
+            final var strippedHit = new SearchHit(
+                hit.docId(),
+                hit.getId(),
+                typeText(hit, metadata),
+                hit.getNestedIdentity(),
+                documentFields,
+                metaFields
+            );
+            strippedHit.score(hit.getScore());
+            strippedHit.version(hit.getVersion());
+            strippedHit.setSeqNo(hit.getSeqNo());
+            strippedHit.setPrimaryTerm(hit.getPrimaryTerm());
+            strippedHit.sourceRef(hit.getSourceRef());
+            strippedHit.highlightFields(hit.getHighlightFields());
+            strippedHit.explanation(hit.getExplanation());
+            strippedHit.matchedQueries(hit.getMatchedQueries());
+            strippedHit.setInnerHits(hit.getInnerHits());
+            if (hit.getShard() != null) {
+                strippedHit.shard(hit.getShard());
+            }
+            return strippedHit;
+        }
 
-        chain.proceed(task, action, request, collapseListener);
+        /**
+         * Returns the mapping type of the hit's index, there is a single one since 6.x.
+         * Hits of remote clusters get the default type.
+         */
+        private static Text typeText(SearchHit hit, Metadata metadata) {
+            final var shard = hit.getShard();
+            if (shard != null && shard.getClusterAlias() == null) {
+                final var indexMetadata = metadata.index(shard.getIndex());
+                final var mapping = indexMetadata != null ? indexMetadata.mapping() : null;
+                if (mapping != null) {
+                    return new Text(mapping.type());
+                }
+            }
+            return new Text(MapperService.SINGLE_MAPPING_NAME);
+        }
+
+        private static SearchHit[] paginate(List<SearchHit> hits, int from, int size) {
+            var fromIndex = Math.min(from, hits.size());
+            var toIndex = Math.min(fromIndex + size, hits.size());
+            return hits
+                .subList(fromIndex, toIndex)
+                .toArray(new SearchHit[0]);
+        }
     }
 }
@@ -18,26 +18,160 @@
  */
 package dev.evo.elasticsearch.collapse;
 
+import dev.evo.elasticsearch.collapse.aggregations.GroupCountAggregationBuilder;
+import dev.evo.elasticsearch.collapse.aggregations.InternalGroupCount;
 import dev.evo.elasticsearch.collapse.rescore.CollapseRescorerBuilder;
+import dev.evo.elasticsearch.collapse.rescore.CollapseSearchOperationListener;
+import dev.evo.elasticsearch.collapse.rescore.GroupDecayRescorerBuilder;
+import dev.evo.elasticsearch.collapse.rescore.GroupLeadersCache;
+import dev.evo.elasticsearch.collapse.rescore.GroupStatsFetchSubPhase;
 
 import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.indices.breaker.BreakerSettings;
 import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.CircuitBreakerPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Supplier;
 
-public class CollapseRescorePlugin extends Plugin implements ActionPlugin, SearchPlugin {
+public class CollapseRescorePlugin extends Plugin implements ActionPlugin, CircuitBreakerPlugin, SearchPlugin {
     private final Settings settings;
+    private Client client;
+    private ClusterService clusterService;
+    private IndexNameExpressionResolver indexNameExpressionResolver;
+    private CollapseAdmissionControl admissionControl;
+    private CollapseSingleFlight<CollapseRescoreFilter.CollapsedResponse> singleFlight;
+    private final GroupLeadersCache groupLeaders;
+    private final CollapseReplayWarmer replayWarmer;
+    private final CollapseFieldsWarmer fieldsWarmer;
 
     public CollapseRescorePlugin(final Settings settings) {
         this.settings = settings;
+        this.groupLeaders = new GroupLeadersCache(settings);
+        this.replayWarmer = new CollapseReplayWarmer(settings);
+        this.fieldsWarmer = new CollapseFieldsWarmer(settings, replayWarmer, groupLeaders);
+    }
+
+    @Override
+    public Collection<Object> createComponents(
+        Client client,
+        ClusterService clusterService,
+        ThreadPool threadPool,
+        ResourceWatcherService resourceWatcherService,
+        ScriptService scriptService,
+        NamedXContentRegistry xContentRegistry,
+        Environment environment,
+        NodeEnvironment nodeEnvironment,
+        NamedWriteableRegistry namedWriteableRegistry,
+        IndexNameExpressionResolver indexNameExpressionResolver,
+        Supplier<RepositoriesService> repositoriesServiceSupplier
+    ) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.admissionControl = new CollapseAdmissionControl(settings, threadPool);
+        this.singleFlight = new CollapseSingleFlight<>(
+            settings, threadPool.getThreadContext(), CollapseRescoreFilter.CollapsedResponse::copy
+        );
+        replayWarmer.start(
+            client, clusterService, indexNameExpressionResolver, xContentRegistry, nodeEnvironment.nodeDataPaths()[0]
+        );
+        fieldsWarmer.start(threadPool);
+        return List.of(admissionControl, singleFlight, groupLeaders, replayWarmer);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return List.of(
+            CollapseRescoreFilter.COLLAPSE_RESCORE_FILTER_ORDER,
+            CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_COST,
+            CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_QUEUE_SIZE,
+            CollapseAdmissionControl.COLLAPSE_ADMISSION_QUEUE_TIMEOUT,
+            GroupLeadersCache.COLLAPSE_GROUP_LEADERS_CACHE_ENABLED,
+            GroupLeadersCache.COLLAPSE_GROUP_LEADERS_CACHE_SIZE,
+            CollapseFieldsWarmer.INDEX_COLLAPSE_WARM_FIELDS,
+            CollapseFieldsWarmer.COLLAPSE_WARMER_INTERVAL,
+            CollapseReplayWarmer.COLLAPSE_REPLAY_MAX_REQUESTS,
+            CollapseReplayWarmer.COLLAPSE_REPLAY_MIN_INTERVAL,
+            CollapseReplayWarmer.COLLAPSE_REPLAY_PERSIST,
+            CollapseReplayWarmer.COLLAPSE_REPLAY_AUTHORIZATION,
+            CollapseSingleFlight.COLLAPSE_SINGLE_FLIGHT_ENABLED
+        );
+    }
+
+    @Override
+    public BreakerSettings getCircuitBreaker(Settings settings) {
+        return GroupLeadersCache.breakerSettings(settings);
+    }
+
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        groupLeaders.breaker(circuitBreaker);
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        indexModule.addSearchOperationListener(new CollapseSearchOperationListener(groupLeaders));
+        indexModule.addIndexEventListener(fieldsWarmer);
+    }
+
+    @Override
+    public void close() {
+        fieldsWarmer.close();
+        replayWarmer.store();
     }
 
     @Override
     public List<ActionFilter> getActionFilters() {
-        return List.of(new CollapseRescoreFilter(settings));
+        return List.of(
+            new CollapseRescoreFilter(
+                settings,
+                client,
+                clusterService,
+                indexNameExpressionResolver,
+                admissionControl,
+                singleFlight,
+                replayWarmer
+            )
+        );
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(
+        Settings settings,
+        RestController restController,
+        ClusterSettings clusterSettings,
+        IndexScopedSettings indexScopedSettings,
+        SettingsFilter settingsFilter,
+        IndexNameExpressionResolver indexNameExpressionResolver,
+        Supplier<DiscoveryNodes> nodesInCluster
+    ) {
+        return List.of(new RestCollapseStatsAction(admissionControl, singleFlight, groupLeaders));
     }
 
     @Override
@@ -51,6 +185,24 @@ public class CollapseRescorePlugin extends Plugin implements ActionPlugin, Searc
         );
     }
 
+    @Override
+    public List<AggregationSpec> getAggregations() {
+        return List.of(
+            new AggregationSpec(
+                GroupCountAggregationBuilder.NAME,
+                GroupCountAggregationBuilder::new,
+                GroupCountAggregationBuilder::fromXContent
+            )
+                .addResultReader(InternalGroupCount::new)
+                .setAggregatorRegistrar(GroupCountAggregationBuilder::registerAggregators)
+        );
+    }
+
+    @Override
+    public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
+        return List.of(new GroupStatsFetchSubPhase());
+    }
+
     @Override
     public List<RescorerSpec<?>> getRescorers() {
         return List.of(
@@ -58,6 +210,11 @@ public class CollapseRescorePlugin extends Plugin implements ActionPlugin, Searc
                 CollapseRescorerBuilder.NAME,
                 CollapseRescorerBuilder::new,
                 CollapseRescorerBuilder::fromXContent
+            ),
+            new RescorerSpec<>(
+                GroupDecayRescorerBuilder.NAME,
+                GroupDecayRescorerBuilder::new,
+                GroupDecayRescorerBuilder::fromXContent
             )
         );
     }
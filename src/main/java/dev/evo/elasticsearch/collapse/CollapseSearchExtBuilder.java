@@ -18,6 +18,10 @@
  */
 package dev.evo.elasticsearch.collapse;
 
+import dev.evo.elasticsearch.collapse.rescore.GroupBloomFilter;
+import dev.evo.elasticsearch.collapse.rescore.GroupLevel;
+import dev.evo.elasticsearch.collapse.rescore.GroupScoreMode;
+
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
@@ -39,6 +43,7 @@ import java.util.Objects;
 public class CollapseSearchExtBuilder extends SearchExtBuilder {
     public static final String NAME = "collapse";
 
+    // Either a single field or an array of fields that form a composite group key
     private static final ParseField GROUP_FIELD_NAME = new ParseField("field");
 
     // Window size on which we will operate to group and collapse documents
@@ -49,18 +54,86 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
     private static final ParseField SHARD_SIZE_FIELD_NAME = new ParseField("shard_size");
     private static final int DEFAULT_SHARD_SIZE = 1_000;
 
+    // Window size to start with, it is widened geometrically up to the window size
+    // until there are enough groups to fill a page
+    private static final ParseField INITIAL_WINDOW_SIZE_FIELD_NAME = new ParseField("initial_window_size");
+    private static final int DEFAULT_INITIAL_WINDOW_SIZE = -1;
+
+    private static final ParseField WINDOW_GROWTH_FACTOR_FIELD_NAME = new ParseField("window_growth_factor");
+    private static final int DEFAULT_WINDOW_GROWTH_FACTOR = 4;
+
+    // Derive per-shard window size and shard size from the requested page and number of shards
+    private static final ParseField AUTO_SHARD_SIZING_FIELD_NAME = new ParseField("auto_shard_sizing");
+    private static final boolean DEFAULT_AUTO_SHARD_SIZING = false;
+
+    // How many more documents than a proportional part of a page a shard should return
+    private static final ParseField OVERSAMPLING_FIELD_NAME = new ParseField("oversampling");
+    private static final float DEFAULT_OVERSAMPLING = 1.5F;
+
+    // Number of the most competitive documents to keep for every group
+    private static final ParseField MAX_PER_GROUP_FIELD_NAME = new ParseField("max_per_group");
+    private static final int DEFAULT_MAX_PER_GROUP = 1;
+
+    // Return number of documents of a group within the window with every collapsed hit
+    private static final ParseField TRACK_GROUP_SIZE_FIELD_NAME = new ParseField("track_group_size");
+    private static final boolean DEFAULT_TRACK_GROUP_SIZE = false;
+
+    // Count approximate total number of groups instead of groups within the window
+    private static final ParseField TRACK_TOTAL_GROUPS_FIELD_NAME = new ParseField("track_total_groups");
+    private static final boolean DEFAULT_TRACK_TOTAL_GROUPS = false;
+
+    // How to calculate a group score from the scores of its documents
+    private static final ParseField SCORE_MODE_FIELD_NAME = new ParseField("score_mode");
+    private static final GroupScoreMode DEFAULT_SCORE_MODE = GroupScoreMode.MAX;
+
+    // Upper grouping levels, every level limits number of groups per value of its field
+    private static final ParseField LEVELS_FIELD_NAME = new ParseField("levels");
+
+    // Bloom filter of group values that must be skipped, for instance already shown groups
+    private static final ParseField EXCLUDE_FIELD_NAME = new ParseField("exclude");
+
+    // Run collapsing before other rescorers of the search request
+    private static final ParseField COLLAPSE_FIRST_FIELD_NAME = new ParseField("collapse_first");
+    private static final boolean DEFAULT_COLLAPSE_FIRST = false;
+
     private static final ParseField PAGINATION_FIELD_NAME = new ParseField("pagination");
     private static final boolean DEFAULT_PAGINATION = true;
 
     private static final ConstructingObjectParser<CollapseSearchExtBuilder, Void> PARSER =
         new ConstructingObjectParser<>(
             NAME,
-            args -> new CollapseSearchExtBuilder((String) args[0])
+            args -> {
+                @SuppressWarnings("unchecked")
+                final var groupFields = (List<String>) args[0];
+                return new CollapseSearchExtBuilder(groupFields);
+            }
         );
     static {
-        PARSER.declareString(ConstructingObjectParser.constructorArg(), GROUP_FIELD_NAME);
+        PARSER.declareStringArray(ConstructingObjectParser.constructorArg(), GROUP_FIELD_NAME);
         PARSER.declareInt(CollapseSearchExtBuilder::windowSize, WINDOW_SIZE_FIELD_NAME);
         PARSER.declareInt(CollapseSearchExtBuilder::shardSize, SHARD_SIZE_FIELD_NAME);
+        PARSER.declareInt(CollapseSearchExtBuilder::initialWindowSize, INITIAL_WINDOW_SIZE_FIELD_NAME);
+        PARSER.declareInt(CollapseSearchExtBuilder::windowGrowthFactor, WINDOW_GROWTH_FACTOR_FIELD_NAME);
+        PARSER.declareBoolean(CollapseSearchExtBuilder::autoShardSizing, AUTO_SHARD_SIZING_FIELD_NAME);
+        PARSER.declareFloat(CollapseSearchExtBuilder::oversampling, OVERSAMPLING_FIELD_NAME);
+        PARSER.declareInt(CollapseSearchExtBuilder::maxPerGroup, MAX_PER_GROUP_FIELD_NAME);
+        PARSER.declareBoolean(CollapseSearchExtBuilder::trackGroupSize, TRACK_GROUP_SIZE_FIELD_NAME);
+        PARSER.declareBoolean(CollapseSearchExtBuilder::trackTotalGroups, TRACK_TOTAL_GROUPS_FIELD_NAME);
+        PARSER.declareString(
+            (ext, scoreMode) -> ext.scoreMode(GroupScoreMode.fromString(scoreMode)),
+            SCORE_MODE_FIELD_NAME
+        );
+        PARSER.declareObjectArray(
+            CollapseSearchExtBuilder::levels,
+            (parser, ctx) -> GroupLevel.fromXContent(parser),
+            LEVELS_FIELD_NAME
+        );
+        PARSER.declareObject(
+            CollapseSearchExtBuilder::exclude,
+            (parser, ctx) -> GroupBloomFilter.fromXContent(parser),
+            EXCLUDE_FIELD_NAME
+        );
+        PARSER.declareBoolean(CollapseSearchExtBuilder::collapseFirst, COLLAPSE_FIRST_FIELD_NAME);
         PARSER.declareBoolean(CollapseSearchExtBuilder::pagination, PAGINATION_FIELD_NAME);
         PARSER.declareField(
             CollapseSearchExtBuilder::setSorts,
@@ -70,21 +143,52 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
         );
     }
 
-    private final String groupField;
+    private final List<String> groupFields;
     private int windowSize = DEFAULT_WINDOW_SIZE;
     private int shardSize = DEFAULT_SHARD_SIZE;
+    private int initialWindowSize = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int windowGrowthFactor = DEFAULT_WINDOW_GROWTH_FACTOR;
+    private boolean autoShardSizing = DEFAULT_AUTO_SHARD_SIZING;
+    private float oversampling = DEFAULT_OVERSAMPLING;
+    private int maxPerGroup = DEFAULT_MAX_PER_GROUP;
+    private boolean trackGroupSize = DEFAULT_TRACK_GROUP_SIZE;
+    private boolean trackTotalGroups = DEFAULT_TRACK_TOTAL_GROUPS;
+    private GroupScoreMode scoreMode = DEFAULT_SCORE_MODE;
+    private List<GroupLevel> levels = List.of();
+    private GroupBloomFilter exclude = null;
+    private boolean collapseFirst = DEFAULT_COLLAPSE_FIRST;
     private boolean pagination = DEFAULT_PAGINATION;
     private List<SortBuilder<?>> sorts;
 
     public CollapseSearchExtBuilder(String groupField) {
-        this.groupField = groupField;
+        this(List.of(groupField));
+    }
+
+    public CollapseSearchExtBuilder(List<String> groupFields) {
+        if (groupFields.isEmpty()) {
+            throw new IllegalArgumentException(
+                "[" + GROUP_FIELD_NAME.getPreferredName() + "] must not be empty"
+            );
+        }
+        this.groupFields = groupFields;
         this.sorts = new ArrayList<>();
     }
 
     public CollapseSearchExtBuilder(StreamInput in) throws IOException {
-        groupField = in.readString();
+        groupFields = in.readStringList();
         windowSize = in.readInt();
         shardSize = in.readInt();
+        initialWindowSize = in.readInt();
+        windowGrowthFactor = in.readVInt();
+        autoShardSizing = in.readBoolean();
+        oversampling = in.readFloat();
+        maxPerGroup = in.readVInt();
+        trackGroupSize = in.readBoolean();
+        trackTotalGroups = in.readBoolean();
+        scoreMode = GroupScoreMode.readFromStream(in);
+        levels = in.readList(GroupLevel::new);
+        exclude = in.readOptionalWriteable(GroupBloomFilter::new);
+        collapseFirst = in.readBoolean();
         pagination = in.readBoolean();
         final int size = in.readVInt();
         sorts = new ArrayList<>(size);
@@ -96,9 +200,20 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
-        out.writeString(groupField);
+        out.writeStringCollection(groupFields);
         out.writeInt(windowSize);
         out.writeInt(shardSize);
+        out.writeInt(initialWindowSize);
+        out.writeVInt(windowGrowthFactor);
+        out.writeBoolean(autoShardSizing);
+        out.writeFloat(oversampling);
+        out.writeVInt(maxPerGroup);
+        out.writeBoolean(trackGroupSize);
+        out.writeBoolean(trackTotalGroups);
+        scoreMode.writeTo(out);
+        out.writeList(levels);
+        out.writeOptionalWriteable(exclude);
+        out.writeBoolean(collapseFirst);
         out.writeBoolean(pagination);
         out.writeVInt(sorts.size());
         for (var sort : sorts) {
@@ -107,9 +222,6 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
     }
 
     private static List<SortBuilder<?>> checkSorts(List<SortBuilder<?>> sorts) {
-        if (sorts.size() > 1) {
-            throw new IllegalArgumentException("Currently only single sort is supported");
-        }
         for (var sort : sorts) {
             if (sort instanceof FieldSortBuilder) {
                 continue;
@@ -126,8 +238,8 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
         return PARSER.apply(parser, null);
     }
 
-    public String groupField() {
-        return groupField;
+    public List<String> groupFields() {
+        return groupFields;
     }
 
     public CollapseSearchExtBuilder windowSize(int size) {
@@ -148,6 +260,127 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
         return shardSize;
     }
 
+    public CollapseSearchExtBuilder initialWindowSize(int initialWindowSize) {
+        this.initialWindowSize = initialWindowSize;
+        return this;
+    }
+
+    public int initialWindowSize() {
+        return initialWindowSize;
+    }
+
+    public CollapseSearchExtBuilder windowGrowthFactor(int windowGrowthFactor) {
+        if (windowGrowthFactor < 2) {
+            throw new IllegalArgumentException(
+                "[" + WINDOW_GROWTH_FACTOR_FIELD_NAME.getPreferredName() + "] must be greater than 1"
+            );
+        }
+        this.windowGrowthFactor = windowGrowthFactor;
+        return this;
+    }
+
+    public int windowGrowthFactor() {
+        return windowGrowthFactor;
+    }
+
+    public CollapseSearchExtBuilder autoShardSizing(boolean autoShardSizing) {
+        this.autoShardSizing = autoShardSizing;
+        return this;
+    }
+
+    public boolean autoShardSizing() {
+        return autoShardSizing;
+    }
+
+    public CollapseSearchExtBuilder oversampling(float oversampling) {
+        if (oversampling < 1.0F) {
+            throw new IllegalArgumentException(
+                "[" + OVERSAMPLING_FIELD_NAME.getPreferredName() + "] must be greater or equal to 1"
+            );
+        }
+        this.oversampling = oversampling;
+        return this;
+    }
+
+    public float oversampling() {
+        return oversampling;
+    }
+
+    public CollapseSearchExtBuilder maxPerGroup(int maxPerGroup) {
+        if (maxPerGroup < 1) {
+            throw new IllegalArgumentException(
+                "[" + MAX_PER_GROUP_FIELD_NAME.getPreferredName() + "] must be greater than 0"
+            );
+        }
+        this.maxPerGroup = maxPerGroup;
+        return this;
+    }
+
+    public int maxPerGroup() {
+        return maxPerGroup;
+    }
+
+    public CollapseSearchExtBuilder trackGroupSize(boolean trackGroupSize) {
+        this.trackGroupSize = trackGroupSize;
+        return this;
+    }
+
+    public boolean trackGroupSize() {
+        return trackGroupSize;
+    }
+
+    public CollapseSearchExtBuilder trackTotalGroups(boolean trackTotalGroups) {
+        this.trackTotalGroups = trackTotalGroups;
+        return this;
+    }
+
+    public boolean trackTotalGroups() {
+        return trackTotalGroups;
+    }
+
+    public CollapseSearchExtBuilder scoreMode(GroupScoreMode scoreMode) {
+        this.scoreMode = scoreMode;
+        return this;
+    }
+
+    public GroupScoreMode scoreMode() {
+        return scoreMode;
+    }
+
+    public CollapseSearchExtBuilder levels(List<GroupLevel> levels) {
+        this.levels = levels;
+        return this;
+    }
+
+    public CollapseSearchExtBuilder addLevel(GroupLevel level) {
+        final var levels = new ArrayList<>(this.levels);
+        levels.add(level);
+        this.levels = levels;
+        return this;
+    }
+
+    public List<GroupLevel> levels() {
+        return levels;
+    }
+
+    public CollapseSearchExtBuilder exclude(GroupBloomFilter exclude) {
+        this.exclude = exclude;
+        return this;
+    }
+
+    public GroupBloomFilter exclude() {
+        return exclude;
+    }
+
+    public CollapseSearchExtBuilder collapseFirst(boolean collapseFirst) {
+        this.collapseFirst = collapseFirst;
+        return this;
+    }
+
+    public boolean collapseFirst() {
+        return collapseFirst;
+    }
+
     public CollapseSearchExtBuilder pagination(boolean pagination) {
         this.pagination = pagination;
         return this;
@@ -179,16 +412,63 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
-        builder.field(GROUP_FIELD_NAME.getPreferredName(), groupField);
+        if (groupFields.size() == 1) {
+            builder.field(GROUP_FIELD_NAME.getPreferredName(), groupFields.get(0));
+        } else {
+            builder.field(GROUP_FIELD_NAME.getPreferredName(), groupFields);
+        }
         builder.field(WINDOW_SIZE_FIELD_NAME.getPreferredName(), windowSize);
         builder.field(SHARD_SIZE_FIELD_NAME.getPreferredName(), shardSize);
+        if (initialWindowSize > 0) {
+            builder.field(INITIAL_WINDOW_SIZE_FIELD_NAME.getPreferredName(), initialWindowSize);
+            builder.field(WINDOW_GROWTH_FACTOR_FIELD_NAME.getPreferredName(), windowGrowthFactor);
+        }
+        if (autoShardSizing) {
+            builder.field(AUTO_SHARD_SIZING_FIELD_NAME.getPreferredName(), autoShardSizing);
+            builder.field(OVERSAMPLING_FIELD_NAME.getPreferredName(), oversampling);
+        }
+        if (maxPerGroup > 1) {
+            builder.field(MAX_PER_GROUP_FIELD_NAME.getPreferredName(), maxPerGroup);
+        }
+        if (trackGroupSize) {
+            builder.field(TRACK_GROUP_SIZE_FIELD_NAME.getPreferredName(), trackGroupSize);
+        }
+        if (trackTotalGroups) {
+            builder.field(TRACK_TOTAL_GROUPS_FIELD_NAME.getPreferredName(), trackTotalGroups);
+        }
+        if (scoreMode != DEFAULT_SCORE_MODE) {
+            builder.field(SCORE_MODE_FIELD_NAME.getPreferredName(), scoreMode.toString());
+        }
+        if (!levels.isEmpty()) {
+            builder.field(LEVELS_FIELD_NAME.getPreferredName(), levels);
+        }
+        if (exclude != null) {
+            builder.field(EXCLUDE_FIELD_NAME.getPreferredName(), exclude);
+        }
+        if (collapseFirst) {
+            builder.field(COLLAPSE_FIRST_FIELD_NAME.getPreferredName(), collapseFirst);
+        }
+        if (pagination != DEFAULT_PAGINATION) {
+            builder.field(PAGINATION_FIELD_NAME.getPreferredName(), pagination);
+        }
+        if (!sorts.isEmpty()) {
+            builder.startArray(SearchSourceBuilder.SORT_FIELD.getPreferredName());
+            for (var sort : sorts) {
+                sort.toXContent(builder, params);
+            }
+            builder.endArray();
+        }
         builder.endObject();
         return builder;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(groupField, windowSize, shardSize);
+        return Objects.hash(
+            groupFields, windowSize, shardSize, initialWindowSize, windowGrowthFactor,
+            autoShardSizing, oversampling, maxPerGroup, trackGroupSize, trackTotalGroups, scoreMode, levels,
+            exclude, collapseFirst, pagination, sorts
+        );
     }
 
     @Override
@@ -197,8 +477,21 @@ public class CollapseSearchExtBuilder extends SearchExtBuilder {
             return false;
         }
         var other = (CollapseSearchExtBuilder) obj;
-        return other.groupField.equals(groupField) &&
+        return other.groupFields.equals(groupFields) &&
             other.windowSize == windowSize &&
-            other.shardSize == shardSize;
+            other.shardSize == shardSize &&
+            other.initialWindowSize == initialWindowSize &&
+            other.windowGrowthFactor == windowGrowthFactor &&
+            other.autoShardSizing == autoShardSizing &&
+            other.oversampling == oversampling &&
+            other.maxPerGroup == maxPerGroup &&
+            other.trackGroupSize == trackGroupSize &&
+            other.trackTotalGroups == trackTotalGroups &&
+            other.scoreMode == scoreMode &&
+            other.levels.equals(levels) &&
+            Objects.equals(other.exclude, exclude) &&
+            other.collapseFirst == collapseFirst &&
+            other.pagination == pagination &&
+            other.sorts.equals(sorts);
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.tasks.TaskCancelledException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Deduplicates identical requests that are executed concurrently.
+ *
+ * The first request with a key executes, requests with the same key that arrive
+ * before it completes wait for its result instead of executing on their own.
+ * Results are mutable, so every joined request gets its own copy of the result.
+ * Joined requests share only failures caused by the request itself, when the executing
+ * request is cancelled or fails for another reason they are executed again.
+ */
+public class CollapseSingleFlight<T> implements ToXContentObject {
+    public static final Setting<Boolean> COLLAPSE_SINGLE_FLIGHT_ENABLED = Setting.boolSetting(
+        "collapse.single_flight.enabled", false, Setting.Property.NodeScope
+    );
+
+    private final class Follower {
+        private final ActionListener<T> listener;
+        private final Consumer<ActionListener<T>> executor;
+        private final ThreadContext.StoredContext context;
+        private final ActionListener<T> contextListener;
+
+        Follower(ActionListener<T> listener, Consumer<ActionListener<T>> executor) {
+            this.listener = listener;
+            this.executor = executor;
+            this.context = threadContext.newStoredContext(false);
+            // The follower is completed in its own context, response headers and warnings
+            // of the executing request are not merged into it
+            this.contextListener = new ContextPreservingActionListener<>(
+                threadContext.newRestorableContext(false), listener
+            ).map(copy::apply);
+        }
+
+        void reexecute(String key) {
+            final var storedContext = threadContext.newStoredContext(false);
+            try {
+                context.restore();
+                execute(key, listener, executor);
+            } finally {
+                storedContext.restore();
+            }
+        }
+    }
+
+    private final class Flight implements ActionListener<T> {
+        private final String key;
+        private final ActionListener<T> listener;
+        private final List<Follower> followers = new ArrayList<>();
+        private boolean completed;
+
+        Flight(String key, ActionListener<T> listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        synchronized boolean join(Follower follower) {
+            if (completed) {
+                return false;
+            }
+            followers.add(follower);
+            return true;
+        }
+
+        private synchronized List<Follower> complete() {
+            // Requests arriving from now on start a new flight
+            flights.remove(key, this);
+            completed = true;
+            return followers;
+        }
+
+        @Override
+        public void onResponse(T result) {
+            final var followers = complete();
+            // Copies are made before the executing request gets the result
+            for (var follower : followers) {
+                follower.contextListener.onResponse(result);
+            }
+            listener.onResponse(result);
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            final var followers = complete();
+            if (isRequestFailure(e)) {
+                for (var follower : followers) {
+                    follower.contextListener.onFailure(e);
+                }
+            } else if (!followers.isEmpty()) {
+                synchronized (CollapseSingleFlight.this) {
+                    reexecutedTotal += followers.size();
+                }
+                for (var follower : followers) {
+                    follower.reexecute(key);
+                }
+            }
+            listener.onFailure(e);
+        }
+    }
+
+    private final boolean enabled;
+    private final ThreadContext threadContext;
+    private final UnaryOperator<T> copy;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private long executedTotal;
+    private long joinedTotal;
+    private long reexecutedTotal;
+
+    public CollapseSingleFlight(Settings settings, ThreadContext threadContext, UnaryOperator<T> copy) {
+        this.enabled = COLLAPSE_SINGLE_FLIGHT_ENABLED.get(settings);
+        this.threadContext = threadContext;
+        this.copy = copy;
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Executes the request calling the executor with a listener that it must complete
+     * or joins a flight of an identical request that is already in progress.
+     * The listener is notified with a result of the flight in both cases.
+     */
+    public void execute(String key, ActionListener<T> listener, Consumer<ActionListener<T>> executor) {
+        Follower follower = null;
+        while (true) {
+            final var flight = new Flight(key, listener);
+            final var existingFlight = flights.putIfAbsent(key, flight);
+            if (existingFlight == null) {
+                synchronized (this) {
+                    executedTotal++;
+                }
+                executor.accept(flight);
+                return;
+            }
+            if (follower == null) {
+                follower = new Follower(listener, executor);
+            }
+            if (existingFlight.join(follower)) {
+                synchronized (this) {
+                    joinedTotal++;
+                }
+                return;
+            }
+            // The flight has just been completed
+        }
+    }
+
+    /**
+     * Failures that an identical request would get as well. Cancellation of the executing
+     * request, rejections and failures of nodes do not depend on the request.
+     */
+    private static boolean isRequestFailure(Exception e) {
+        if (ExceptionsHelper.unwrap(e, TaskCancelledException.class) != null) {
+            return false;
+        }
+        final var status = ExceptionsHelper.status(e);
+        return status.getStatus() >= 400 &&
+            status.getStatus() < 500 &&
+            status != RestStatus.TOO_MANY_REQUESTS;
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("enabled", enabled);
+        builder.field("in_flight", flights.size());
+        builder.field("executed_total", executedTotal);
+        builder.field("joined_total", joinedTotal);
+        builder.field("reexecuted_total", reexecutedTotal);
+        builder.endObject();
+        return builder;
+    }
+}
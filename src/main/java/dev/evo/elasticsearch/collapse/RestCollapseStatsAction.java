@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse;
+
+import dev.evo.elasticsearch.collapse.rescore.GroupLeadersCache;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.List;
+
+/**
+ * Exposes collapse admission control, request deduplication and group leaders cache metrics of the local node.
+ */
+public class RestCollapseStatsAction extends BaseRestHandler {
+    private final CollapseAdmissionControl admissionControl;
+    private final CollapseSingleFlight<?> singleFlight;
+    private final GroupLeadersCache groupLeaders;
+
+    public RestCollapseStatsAction(
+        CollapseAdmissionControl admissionControl, CollapseSingleFlight<?> singleFlight, GroupLeadersCache groupLeaders
+    ) {
+        this.admissionControl = admissionControl;
+        this.singleFlight = singleFlight;
+        this.groupLeaders = groupLeaders;
+    }
+
+    @Override
+    public String getName() {
+        return "collapse_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(RestRequest.Method.GET, "/_collapse/stats"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        return channel -> {
+            final var builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("admission");
+            admissionControl.toXContent(builder, request);
+            builder.field("single_flight");
+            singleFlight.toXContent(builder, request);
+            builder.field("group_leaders");
+            groupLeaders.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.aggregations;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.metrics.HyperLogLogPlusPlus;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.aggregations.support.CoreValuesSourceType;
+import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.search.aggregations.support.ValuesSourceAggregationBuilder;
+import org.elasticsearch.search.aggregations.support.ValuesSourceConfig;
+import org.elasticsearch.search.aggregations.support.ValuesSourceRegistry;
+import org.elasticsearch.search.aggregations.support.ValuesSourceType;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Counts distinct values of the collapse field, so every document without a value
+ * is counted as a separate group. Matches the number of groups the collapsed listing
+ * would show for the same set of documents.
+ *
+ * <p>Values are read through a values source, so a script or a {@code missing} value can be used.
+ * Documents that get the {@code missing} value fall into a single group.
+ */
+public class GroupCountAggregationBuilder
+    extends ValuesSourceAggregationBuilder.LeafOnly<ValuesSource, GroupCountAggregationBuilder>
+{
+    public static final String NAME = "group_count";
+    public static final ValuesSourceRegistry.RegistryKey<GroupCountAggregatorSupplier> REGISTRY_KEY =
+        new ValuesSourceRegistry.RegistryKey<>(NAME, GroupCountAggregatorSupplier.class);
+
+    private static final ParseField PRECISION_THRESHOLD_FIELD =
+        new ParseField("precision_threshold");
+
+    private static final ObjectParser<GroupCountAggregationBuilder, String> PARSER =
+        ObjectParser.fromBuilder(NAME, GroupCountAggregationBuilder::new);
+    static {
+        ValuesSourceAggregationBuilder.declareFields(PARSER, true, false, false);
+        PARSER.declareLong(
+            GroupCountAggregationBuilder::precisionThreshold, PRECISION_THRESHOLD_FIELD
+        );
+    }
+
+    private Long precisionThreshold = null;
+
+    public static GroupCountAggregationBuilder fromXContent(
+        XContentParser parser, String aggregationName
+    ) throws IOException {
+        return PARSER.parse(parser, aggregationName);
+    }
+
+    public static void registerAggregators(ValuesSourceRegistry.Builder builder) {
+        builder.register(REGISTRY_KEY, CoreValuesSourceType.ALL_CORE, GroupCountAggregator::new, true);
+    }
+
+    public GroupCountAggregationBuilder(String name) {
+        super(name);
+    }
+
+    public GroupCountAggregationBuilder(String name, String groupField) {
+        super(name);
+        field(Objects.requireNonNull(groupField, "[field] must not be null"));
+    }
+
+    protected GroupCountAggregationBuilder(
+        GroupCountAggregationBuilder clone,
+        AggregatorFactories.Builder factoriesBuilder,
+        Map<String, Object> metadata
+    ) {
+        super(clone, factoriesBuilder, metadata);
+        this.precisionThreshold = clone.precisionThreshold;
+    }
+
+    public GroupCountAggregationBuilder(StreamInput in) throws IOException {
+        super(in);
+        precisionThreshold = in.readOptionalLong();
+    }
+
+    @Override
+    protected void innerWriteTo(StreamOutput out) throws IOException {
+        out.writeOptionalLong(precisionThreshold);
+    }
+
+    @Override
+    protected ValuesSourceType defaultValueSourceType() {
+        return CoreValuesSourceType.KEYWORD;
+    }
+
+    public Long precisionThreshold() {
+        return precisionThreshold;
+    }
+
+    public GroupCountAggregationBuilder precisionThreshold(long precisionThreshold) {
+        if (precisionThreshold < 0) {
+            throw new IllegalArgumentException(
+                "[" + PRECISION_THRESHOLD_FIELD.getPreferredName() + "] must be greater than or equal to 0"
+            );
+        }
+        this.precisionThreshold = precisionThreshold;
+        return this;
+    }
+
+    @Override
+    protected AggregationBuilder shallowCopy(
+        AggregatorFactories.Builder factoriesBuilder, Map<String, Object> metadata
+    ) {
+        return new GroupCountAggregationBuilder(this, factoriesBuilder, metadata);
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+
+    @Override
+    protected ValuesSourceRegistry.RegistryKey<?> getRegistryKey() {
+        return REGISTRY_KEY;
+    }
+
+    @Override
+    protected GroupCountAggregatorFactory innerBuild(
+        AggregationContext context,
+        ValuesSourceConfig config,
+        AggregatorFactory parent,
+        AggregatorFactories.Builder subFactoriesBuilder
+    ) throws IOException {
+        final var precision = precisionThreshold == null ?
+            HyperLogLogPlusPlus.DEFAULT_PRECISION :
+            HyperLogLogPlusPlus.precisionFromThreshold(precisionThreshold);
+        final var aggregatorSupplier = context.getValuesSourceRegistry()
+            .getAggregator(REGISTRY_KEY, config);
+        return new GroupCountAggregatorFactory(
+            name, config, precision, context, parent, subFactoriesBuilder, metadata, aggregatorSupplier
+        );
+    }
+
+    @Override
+    protected XContentBuilder doXContentBody(XContentBuilder builder, Params params)
+        throws IOException
+    {
+        if (precisionThreshold != null) {
+            builder.field(PRECISION_THRESHOLD_FIELD.getPreferredName(), precisionThreshold);
+        }
+        return builder;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), precisionThreshold);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        var other = (GroupCountAggregationBuilder) obj;
+        return Objects.equals(other.precisionThreshold, precisionThreshold);
+    }
+}
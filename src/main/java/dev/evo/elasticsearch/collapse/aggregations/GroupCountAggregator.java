@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.aggregations;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.BitArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.common.util.ObjectArray;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.metrics.HyperLogLogPlusPlus;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.search.aggregations.support.ValuesSourceConfig;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Chooses a collector for every segment the same way the {@code cardinality} aggregation does.
+ * For fields with ordinals every bucket gets a bitset over segment ordinals, the
+ * terms are hashed only once per visited ordinal after the segment is collected.
+ * When the bitsets would take too much memory in comparison with the HyperLogLog++ sketch
+ * values are hashed straight into the sketch.
+ */
+class GroupCountAggregator extends NumericMetricsAggregator.SingleValue {
+    private final ValuesSource valuesSource;
+    private final int precision;
+
+    private HyperLogLogPlusPlus counts;
+    private LongArray missing;
+    // collector of the current segment that must be post collected
+    private OrdinalsCollector ordinalsCollector;
+
+    private int ordinalsCollectorsUsed;
+    private int ordinalsCollectorsOverheadTooHigh;
+    private int hashingCollectorsUsed;
+
+    GroupCountAggregator(
+        String name,
+        ValuesSourceConfig config,
+        int precision,
+        AggregationContext context,
+        Aggregator parent,
+        Map<String, Object> metadata
+    ) throws IOException {
+        super(name, context, parent, metadata);
+        this.valuesSource = config.hasValues() ? config.getValuesSource() : null;
+        this.precision = precision;
+        this.counts = new HyperLogLogPlusPlus(precision, context.bigArrays(), 1);
+        this.missing = context.bigArrays().newLongArray(1, true);
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return valuesSource != null && valuesSource.needsScores() ?
+            ScoreMode.COMPLETE :
+            ScoreMode.COMPLETE_NO_SCORES;
+    }
+
+    @Override
+    protected LeafBucketCollector getLeafCollector(
+        LeafReaderContext ctx, LeafBucketCollector sub
+    ) throws IOException {
+        postCollectOrdinals();
+
+        if (valuesSource == null) {
+            return new LeafBucketCollector() {
+                @Override
+                public void collect(int doc, long bucket) {
+                    incrementMissing(bucket);
+                }
+            };
+        }
+
+        if (valuesSource instanceof ValuesSource.Numeric) {
+            final var numericValuesSource = (ValuesSource.Numeric) valuesSource;
+            hashingCollectorsUsed++;
+            if (numericValuesSource.isFloatingPoint()) {
+                final var values = numericValuesSource.doubleValues(ctx);
+                return new LeafBucketCollector() {
+                    @Override
+                    public void collect(int doc, long bucket) throws IOException {
+                        if (!values.advanceExact(doc)) {
+                            incrementMissing(bucket);
+                            return;
+                        }
+                        for (int i = 0, count = values.docValueCount(); i < count; i++) {
+                            counts.collect(
+                                bucket, MurmurHash3.murmur64(Double.doubleToLongBits(values.nextValue()))
+                            );
+                        }
+                    }
+                };
+            }
+            final var values = numericValuesSource.longValues(ctx);
+            return new LeafBucketCollector() {
+                @Override
+                public void collect(int doc, long bucket) throws IOException {
+                    if (!values.advanceExact(doc)) {
+                        incrementMissing(bucket);
+                        return;
+                    }
+                    for (int i = 0, count = values.docValueCount(); i < count; i++) {
+                        counts.collect(bucket, MurmurHash3.murmur64(values.nextValue()));
+                    }
+                }
+            };
+        }
+
+        if (valuesSource instanceof ValuesSource.Bytes.WithOrdinals) {
+            final var ords = ((ValuesSource.Bytes.WithOrdinals) valuesSource).ordinalsValues(ctx);
+            // Bitsets are only used while they take considerably less memory than the sketch
+            if (ordinalsMemoryOverhead(ords.getValueCount()) <
+                HyperLogLogPlusPlus.memoryUsage(precision) / 4
+            ) {
+                ordinalsCollectorsUsed++;
+                ordinalsCollector = new OrdinalsCollector(ords);
+                return ordinalsCollector;
+            }
+            ordinalsCollectorsOverheadTooHigh++;
+        }
+
+        hashingCollectorsUsed++;
+        final var values = valuesSource.bytesValues(ctx);
+        final var hash = new MurmurHash3.Hash128();
+        return new LeafBucketCollector() {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                if (!values.advanceExact(doc)) {
+                    incrementMissing(bucket);
+                    return;
+                }
+                for (int i = 0, count = values.docValueCount(); i < count; i++) {
+                    final var value = values.nextValue();
+                    MurmurHash3.hash128(value.bytes, value.offset, value.length, 0, hash);
+                    counts.collect(bucket, hash.h1);
+                }
+            }
+        };
+    }
+
+    /**
+     * Approximate memory taken by the visited ordinals of a single bucket.
+     */
+    private static long ordinalsMemoryOverhead(long maxOrd) {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_REF + (maxOrd + 7) / 8;
+    }
+
+    private void incrementMissing(long bucket) {
+        missing = bigArrays().grow(missing, bucket + 1);
+        missing.increment(bucket, 1);
+    }
+
+    private void postCollectOrdinals() throws IOException {
+        if (ordinalsCollector != null) {
+            try {
+                ordinalsCollector.postCollect();
+            } finally {
+                ordinalsCollector.close();
+                ordinalsCollector = null;
+            }
+        }
+    }
+
+    @Override
+    protected void doPostCollection() throws IOException {
+        postCollectOrdinals();
+    }
+
+    private long missing(long bucket) {
+        return bucket < missing.size() ? missing.get(bucket) : 0;
+    }
+
+    @Override
+    public double metric(long bucket) {
+        final var groups = bucket < counts.maxOrd() ? counts.cardinality(bucket) : 0;
+        return groups + missing(bucket);
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long bucket) {
+        if (bucket >= counts.maxOrd()) {
+            return new InternalGroupCount(name, null, missing(bucket), metadata());
+        }
+        return new InternalGroupCount(
+            name,
+            counts.clone(bucket, BigArrays.NON_RECYCLING_INSTANCE),
+            missing(bucket),
+            metadata()
+        );
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalGroupCount(name, null, 0, metadata());
+    }
+
+    @Override
+    public void collectDebugInfo(BiConsumer<String, Object> add) {
+        super.collectDebugInfo(add);
+        add.accept("ordinals_collectors_used", ordinalsCollectorsUsed);
+        add.accept("ordinals_collectors_overhead_too_high", ordinalsCollectorsOverheadTooHigh);
+        add.accept("hashing_collectors_used", hashingCollectorsUsed);
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(ordinalsCollector, counts, missing);
+    }
+
+    /**
+     * Marks visited segment ordinals of every bucket, the terms are hashed into the sketch
+     * after the segment is collected.
+     */
+    private class OrdinalsCollector extends LeafBucketCollector implements Releasable {
+        private final SortedSetDocValues ords;
+        private final long maxOrd;
+        private ObjectArray<BitArray> visitedOrds;
+
+        OrdinalsCollector(SortedSetDocValues ords) {
+            this.ords = ords;
+            this.maxOrd = ords.getValueCount();
+            this.visitedOrds = bigArrays().newObjectArray(1);
+        }
+
+        @Override
+        public void collect(int doc, long bucket) throws IOException {
+            if (!ords.advanceExact(doc)) {
+                incrementMissing(bucket);
+                return;
+            }
+            visitedOrds = bigArrays().grow(visitedOrds, bucket + 1);
+            var bits = visitedOrds.get(bucket);
+            if (bits == null) {
+                bits = new BitArray(maxOrd, bigArrays());
+                visitedOrds.set(bucket, bits);
+            }
+            for (long ord = ords.nextOrd();
+                 ord != SortedSetDocValues.NO_MORE_ORDS;
+                 ord = ords.nextOrd()
+            ) {
+                bits.set(ord);
+            }
+        }
+
+        void postCollect() throws IOException {
+            try (
+                var allVisitedOrds = new BitArray(maxOrd, bigArrays());
+                var hashes = bigArrays().newLongArray(maxOrd, false)
+            ) {
+                for (long bucket = 0; bucket < visitedOrds.size(); bucket++) {
+                    final var bits = visitedOrds.get(bucket);
+                    if (bits != null) {
+                        allVisitedOrds.or(bits);
+                    }
+                }
+
+                final var hash = new MurmurHash3.Hash128();
+                for (long ord = allVisitedOrds.nextSetBit(0);
+                     ord < maxOrd;
+                     ord = allVisitedOrds.nextSetBit(ord + 1)
+                ) {
+                    final var term = ords.lookupOrd(ord);
+                    MurmurHash3.hash128(term.bytes, term.offset, term.length, 0, hash);
+                    hashes.set(ord, hash.h1);
+                }
+
+                for (long bucket = visitedOrds.size() - 1; bucket >= 0; bucket--) {
+                    final var bits = visitedOrds.get(bucket);
+                    if (bits == null) {
+                        continue;
+                    }
+                    for (long ord = bits.nextSetBit(0);
+                         ord < maxOrd;
+                         ord = bits.nextSetBit(ord + 1)
+                    ) {
+                        counts.collect(bucket, hashes.get(ord));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            for (long bucket = 0; bucket < visitedOrds.size(); bucket++) {
+                Releasables.close(visitedOrds.get(bucket));
+            }
+            Releasables.close(visitedOrds);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.aggregations;
+
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.CardinalityUpperBound;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.aggregations.support.ValuesSourceAggregatorFactory;
+import org.elasticsearch.search.aggregations.support.ValuesSourceConfig;
+
+import java.io.IOException;
+import java.util.Map;
+
+class GroupCountAggregatorFactory extends ValuesSourceAggregatorFactory {
+    private final int precision;
+    private final GroupCountAggregatorSupplier aggregatorSupplier;
+
+    GroupCountAggregatorFactory(
+        String name,
+        ValuesSourceConfig config,
+        int precision,
+        AggregationContext context,
+        AggregatorFactory parent,
+        AggregatorFactories.Builder subFactoriesBuilder,
+        Map<String, Object> metadata,
+        GroupCountAggregatorSupplier aggregatorSupplier
+    ) throws IOException {
+        super(name, config, context, parent, subFactoriesBuilder, metadata);
+        this.precision = precision;
+        this.aggregatorSupplier = aggregatorSupplier;
+    }
+
+    @Override
+    protected Aggregator createUnmapped(Aggregator parent, Map<String, Object> metadata)
+        throws IOException
+    {
+        // Every document of an unmapped field is a separate group
+        return new GroupCountAggregator(name, config, precision, context, parent, metadata);
+    }
+
+    @Override
+    protected Aggregator doCreateInternal(
+        Aggregator parent, CardinalityUpperBound cardinality, Map<String, Object> metadata
+    ) throws IOException {
+        return aggregatorSupplier.build(name, config, precision, context, parent, metadata);
+    }
+}
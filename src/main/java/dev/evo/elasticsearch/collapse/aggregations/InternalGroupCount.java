@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.aggregations;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.metrics.AbstractHyperLogLogPlusPlus;
+import org.elasticsearch.search.aggregations.metrics.HyperLogLogPlusPlus;
+import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class InternalGroupCount extends InternalNumericMetricsAggregation.SingleValue {
+    private final AbstractHyperLogLogPlusPlus counts;
+    private final long missing;
+
+    InternalGroupCount(
+        String name, AbstractHyperLogLogPlusPlus counts, long missing, Map<String, Object> metadata
+    ) {
+        super(name, metadata);
+        this.counts = counts;
+        this.missing = missing;
+    }
+
+    public InternalGroupCount(StreamInput in) throws IOException {
+        super(in);
+        missing = in.readVLong();
+        if (in.readBoolean()) {
+            counts = AbstractHyperLogLogPlusPlus.readFrom(in, BigArrays.NON_RECYCLING_INSTANCE);
+        } else {
+            counts = null;
+        }
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeVLong(missing);
+        if (counts != null) {
+            out.writeBoolean(true);
+            counts.writeTo(0, out);
+        } else {
+            out.writeBoolean(false);
+        }
+    }
+
+    @Override
+    public String getWriteableName() {
+        return GroupCountAggregationBuilder.NAME;
+    }
+
+    @Override
+    public double value() {
+        return getValue();
+    }
+
+    /**
+     * Approximate number of distinct groups plus the number of documents
+     * without a group value.
+     */
+    public long getValue() {
+        return (counts == null ? 0 : counts.cardinality(0)) + missing;
+    }
+
+    public long getMissing() {
+        return missing;
+    }
+
+    @Override
+    public InternalAggregation reduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        HyperLogLogPlusPlus reduced = null;
+        long reducedMissing = 0;
+        for (var aggregation : aggregations) {
+            final var groupCount = (InternalGroupCount) aggregation;
+            reducedMissing += groupCount.missing;
+            if (groupCount.counts == null) {
+                continue;
+            }
+            if (reduced == null) {
+                reduced = new HyperLogLogPlusPlus(
+                    groupCount.counts.precision(), BigArrays.NON_RECYCLING_INSTANCE, 1
+                );
+            }
+            reduced.merge(0, groupCount.counts, 0);
+        }
+        return new InternalGroupCount(name, reduced, reducedMissing, getMetadata());
+    }
+
+    @Override
+    protected boolean mustReduceOnSingleInternalAgg() {
+        return false;
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params)
+        throws IOException
+    {
+        builder.field(CommonFields.VALUE.getPreferredName(), getValue());
+        return builder;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+            super.hashCode(), counts == null ? 0 : counts.hashCode(0), missing
+        );
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass() || !super.equals(obj)) {
+            return false;
+        }
+        var other = (InternalGroupCount) obj;
+        if (missing != other.missing) {
+            return false;
+        }
+        if (counts == null || other.counts == null) {
+            return counts == other.counts;
+        }
+        return counts.equals(0, other.counts, 0);
+    }
+}
@@ -18,13 +18,24 @@
  */
 package dev.evo.elasticsearch.collapse.rescore;
 
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FieldComparator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafFieldComparator;
 import org.apache.lucene.search.Scorable;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BytesRefHash;
+import org.elasticsearch.common.util.IntArray;
+import org.elasticsearch.common.util.ObjectArray;
 import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.search.rescore.RescoreContext;
 import org.elasticsearch.search.rescore.Rescorer;
@@ -34,7 +45,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class CollapseRescorer implements Rescorer {
 
@@ -42,7 +55,11 @@ public class CollapseRescorer implements Rescorer {
 
     private static final Comparator<ScoreDoc> DOC_COMPARATOR = Comparator.comparingInt(d -> d.doc);
 
-    private static final Comparator<ScoreDoc> SCORE_DOC_COMPARATOR = (a, b) -> {
+    // Marks groups that were excluded by a client
+    private static final CollapsedScoreDoc EXCLUDED_GROUP =
+        new CollapsedScoreDoc(new ScoreDoc(-1, Float.NaN), -1);
+
+    static final Comparator<ScoreDoc> SCORE_DOC_COMPARATOR = (a, b) -> {
         if (a.score > b.score) {
             return -1;
         }
@@ -52,25 +69,182 @@ public class CollapseRescorer implements Rescorer {
         return a.doc - b.doc;
     };
 
-    static class Context extends RescoreContext {
-        final IndexFieldData<?> groupField;
+    static class Context extends GroupRescoreContext {
         final int shardSize;
+        final int maxPerGroup;
         final Sort sort;
-
-        Context(int windowSize, IndexFieldData<?> groupField, int shardSize, Sort sort) {
-            super(windowSize, INSTANCE);
-            this.groupField = groupField;
+        final GroupScoreMode scoreMode;
+        final boolean trackGroupSize;
+        List<GroupLevel> levels = List.of();
+        List<IndexFieldData<?>> levelFields = List.of();
+        // Groups that must not be returned at all
+        GroupBloomFilter excludedGroups;
+        // Identifies a group sort that does not depend on a query,
+        // such sorts can use cached group leaders of segments
+        String leadersKey;
+        // Provided before the query phase, see CollapseSearchOperationListener
+        GroupLeadersCache groupLeaders;
+        // Group statistics keyed by a global doc id of the returned documents.
+        // Collected in the query phase and handed over to the fetch phase,
+        // see CollapseSearchOperationListener
+        Map<Integer, GroupStats> groupStats;
+
+        Context(
+            int windowSize,
+            List<IndexFieldData<?>> groupFields,
+            int shardSize,
+            int maxPerGroup,
+            Sort sort,
+            GroupScoreMode scoreMode,
+            boolean trackGroupSize
+        ) {
+            super(windowSize, INSTANCE, groupFields);
             this.shardSize = shardSize;
+            this.maxPerGroup = maxPerGroup;
             this.sort = sort;
+            this.scoreMode = scoreMode;
+            this.trackGroupSize = trackGroupSize;
+        }
+
+        Context levels(List<GroupLevel> levels, List<IndexFieldData<?>> levelFields) {
+            this.levels = levels;
+            this.levelFields = levelFields;
+            return this;
+        }
+
+        Context excludedGroups(GroupBloomFilter excludedGroups) {
+            this.excludedGroups = excludedGroups;
+            return this;
+        }
+
+        Context leadersKey(String leadersKey) {
+            this.leadersKey = leadersKey;
+            return this;
+        }
+
+        void groupLeaders(GroupLeadersCache groupLeaders) {
+            this.groupLeaders = groupLeaders;
+        }
+
+        void groupStats(Map<Integer, GroupStats> groupStats) {
+            this.groupStats = groupStats;
+        }
+
+        boolean collectGroupStats() {
+            return trackGroupSize || scoreMode != GroupScoreMode.MAX;
+        }
+    }
+
+    /**
+     * Compares documents of a group by all the sort fields,
+     * every next sort field breaks ties of the previous ones.
+     */
+    static final class GroupDocComparator {
+        private final FieldComparator<?>[] comparators;
+        private final LeafFieldComparator[] leafComparators;
+        private final int[] reverseMuls;
+
+        GroupDocComparator(Sort sort, int numSlots) {
+            final var sortFields = sort.getSort();
+            comparators = new FieldComparator<?>[sortFields.length];
+            leafComparators = new LeafFieldComparator[sortFields.length];
+            reverseMuls = new int[sortFields.length];
+            for (var i = 0; i < sortFields.length; i++) {
+                comparators[i] = sortFields[i].getComparator(numSlots, i);
+                reverseMuls[i] = sortFields[i].getReverse() ? -1 : 1;
+            }
+        }
+
+        void setLeaf(LeafReaderContext readerContext, Scorable scorer) throws IOException {
+            for (var i = 0; i < comparators.length; i++) {
+                leafComparators[i] = comparators[i].getLeafComparator(readerContext);
+                leafComparators[i].setScorer(scorer);
+            }
+        }
+
+        void copy(int slot, int docId) throws IOException {
+            for (var leafComparator : leafComparators) {
+                leafComparator.copy(slot, docId);
+            }
+        }
+
+        /**
+         * Returns a positive number if the document is more competitive
+         * than the one copied into the slot.
+         */
+        int compare(int slot, int docId) throws IOException {
+            for (var i = 0; i < leafComparators.length; i++) {
+                final var leafComparator = leafComparators[i];
+                leafComparator.setBottom(slot);
+                final var cmp = reverseMuls[i] * leafComparator.compareBottom(docId);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+    }
+
+    static final class GroupStats {
+        // Maximum score of the group documents, or an own score
+        // of a document that is not a top of its group
+        final float maxScore;
+        // Number of the group documents in the window, zero for documents
+        // that are not tops of their groups or do not have a group value
+        final int size;
+
+        GroupStats(float maxScore, int size) {
+            this.maxScore = maxScore;
+            this.size = size;
         }
     }
 
     static class CollapsedScoreDoc extends ScoreDoc {
         int slot;
+        // Most competitive documents of a group ordered by the group sort,
+        // only used when more than one document per group is requested
+        CollapsedScoreDoc[] groupDocs;
+        int groupDocsCount;
+        // Number of visited documents of a group, zero for documents without group value
+        int groupSize;
+        double scoreSum;
+        float maxScore;
+        // Values of the upper grouping levels taken from the group top document
+        BytesRef[] levelValues;
+        // Segment where no other document can beat the group top
+        LeafReaderContext resolvedIn;
 
         CollapsedScoreDoc(ScoreDoc hit, int slot) {
             super(hit.doc, hit.score, hit.shardIndex);
             this.slot = slot;
+            this.scoreSum = hit.score;
+        }
+
+        CollapsedScoreDoc(ScoreDoc hit, int slot, int maxPerGroup) {
+            this(hit, slot);
+            if (maxPerGroup > 1) {
+                groupDocs = new CollapsedScoreDoc[maxPerGroup];
+                groupDocs[0] = new CollapsedScoreDoc(hit, slot);
+                groupDocsCount = 1;
+            }
+        }
+
+        /**
+         * Inserts a document into the group keeping the group docs ordered.
+         * The position is a number of group docs that are more competitive than the new one.
+         */
+        void insertGroupDoc(int position, ScoreDoc hit, int slot) {
+            if (position >= groupDocs.length) {
+                return;
+            }
+            final var numMoved = Math.min(groupDocsCount, groupDocs.length - 1) - position;
+            if (numMoved > 0) {
+                System.arraycopy(groupDocs, position, groupDocs, position + 1, numMoved);
+            }
+            groupDocs[position] = new CollapsedScoreDoc(hit, slot);
+            groupDocsCount = Math.min(groupDocsCount + 1, groupDocs.length);
+            doc = groupDocs[0].doc;
+            this.slot = groupDocs[0].slot;
         }
 
         @Override
@@ -101,18 +275,9 @@ public class CollapseRescorer implements Rescorer {
 
         Arrays.sort(hits, DOC_COMPARATOR);
 
-        final var readerContexts = searcher.getIndexReader().leaves();
-        var currentReaderIx = -1;
-        var currentReaderEndDoc = 0;
-        var currentReaderContext = readerContexts.get(0);
-        var groupValues = ctx.groupField
-            .load(currentReaderContext)
-            .getBytesValues();
-
-        final var sortFields = ctx.sort.getSort();
-        final var sortField = sortFields[0];
-        final var reverseMul = sortField.getReverse() ? -1 : 1;
-        final var comparator = sortField.getComparator(hits.length, 0);
+        final var segmentHits = new SegmentHitsIterator(searcher, ctx.groupFields);
+
+        final var comparator = new GroupDocComparator(ctx.sort, hits.length);
         final var docScorer = new Scorable() {
             private int doc;
             private float score;
@@ -135,89 +300,321 @@ public class CollapseRescorer implements Rescorer {
                 return score;
             }
         };
-        var leafComparator = comparator.getLeafComparator(currentReaderContext);
-        leafComparator.setScorer(docScorer);
-
-        final var collapsedHits = new ArrayList<CollapsedScoreDoc>(size);
-
+        comparator.setLeaf(segmentHits.readerContext(), docScorer);
+        var isSortedByGroup = isSortedByGroup(segmentHits.readerContext().reader(), ctx);
+        var leaders = groupLeaders(segmentHits.readerContext(), ctx);
+        // Group of the previous hit when the segment is sorted by the group field
+        // and the group sort, the first hit of every run of a group is its segment top
+        final var runGroupValue = new BytesRefBuilder();
+        CollapsedScoreDoc runTop = null;
+
+        var collapsedHits = new ArrayList<CollapsedScoreDoc>(size);
+
+        // Group values are stored in recycled pages so large windows
+        // do not produce a lot of short living objects
+        final var groupIds = new BytesRefHash(size, ctx.bigArrays);
         // Stores the most relevant hit data for every group
-        final var groupTops = new HashMap<BytesRef, CollapsedScoreDoc>();
+        ObjectArray<CollapsedScoreDoc> groupTops = ctx.bigArrays.newObjectArray(size);
+        final var excludedGroups = ctx.excludedGroups;
+        final var excludeHash = excludedGroups != null ? new MurmurHash3.Hash128() : null;
+        try {
+            var slot = -1;
+            for (var hit : hits) {
+                slot++;
+
+                if (segmentHits.advance(hit)) {
+                    comparator.setLeaf(segmentHits.readerContext(), docScorer);
+                    isSortedByGroup = isSortedByGroup(segmentHits.readerContext().reader(), ctx);
+                    leaders = groupLeaders(segmentHits.readerContext(), ctx);
+                    runTop = null;
+                }
+                final int docId = segmentHits.docId();
+
+                final var groupValue = segmentHits.groupValue();
+                if (runTop != null && groupValue != null && runGroupValue.get().bytesEquals(groupValue)) {
+                    // The rest of a run cannot beat its first hit so neither a group lookup
+                    // nor a comparison is needed
+                    if (runTop != EXCLUDED_GROUP) {
+                        runTop.groupSize++;
+                        runTop.scoreSum += hit.score;
+                        if (hit.score > runTop.score) {
+                            runTop.score = hit.score;
+                        }
+                    }
+                    continue;
+                }
 
-        var slot = -1;
-        for (var hit : hits) {
-            slot++;
+                docScorer.setDoc(docId);
+                docScorer.setScore(hit.score);
+                comparator.copy(slot, docId);
+
+                runTop = null;
+                if (groupValue != null) {
+                    final var groupId = groupIds.add(groupValue);
+
+                    if (groupId >= 0) {
+                        groupTops = ctx.bigArrays.grow(groupTops, groupId + 1);
+                        if (excludedGroups != null && excludedGroups.mightContain(groupValue, excludeHash)) {
+                            // Excluded groups take neither shard size slots nor group sizes,
+                            // the group value is hashed only once
+                            groupTops.set(groupId, EXCLUDED_GROUP);
+                            runTop = startRun(isSortedByGroup, runGroupValue, groupValue, EXCLUDED_GROUP);
+                            continue;
+                        }
+                        // There is no top document for a group value so
+                        // install it
+                        final var scoreDoc = new CollapsedScoreDoc(hit, slot, ctx.maxPerGroup);
+                        scoreDoc.groupSize = 1;
+                        if (leaders != null && leaders.get(docId)) {
+                            scoreDoc.resolvedIn = segmentHits.readerContext();
+                        }
+                        collapsedHits.add(scoreDoc);
+                        groupTops.set(groupId, scoreDoc);
+                        runTop = startRun(isSortedByGroup, runGroupValue, groupValue, scoreDoc);
+                    } else {
+                        final var top = groupTops.get(-1 - groupId);
+                        runTop = startRun(isSortedByGroup, runGroupValue, groupValue, top);
+                        if (top == EXCLUDED_GROUP) {
+                            continue;
+                        }
+                        top.groupSize++;
+                        top.scoreSum += hit.score;
+                        if (top.groupDocs == null) {
+                            if (top.resolvedIn == segmentHits.readerContext()) {
+                                // The group leader of the segment has been already seen
+                            } else if (comparator.compare(top.slot, docId) > 0) {
+                                // New document is more competitive, replace top document in a group
+                                top.doc = hit.doc;
+                                top.slot = slot;
+                            }
+                            if (leaders != null && leaders.get(docId)) {
+                                // Either the leader or the top from a previous segment wins,
+                                // the rest of the segment documents cannot beat them
+                                top.resolvedIn = segmentHits.readerContext();
+                            }
+                        } else {
+                            // Groups are small so just find a position of the new document linearly
+                            var position = 0;
+                            while (position < top.groupDocsCount) {
+                                if (comparator.compare(top.groupDocs[position].slot, docId) > 0) {
+                                    break;
+                                }
+                                position++;
+                            }
+                            top.insertGroupDoc(position, hit, slot);
+                        }
+                        if (hit.score > top.score) {
+                            // Elasticsearch requires scores to be non-decreasing
+                            // Replace top document's score if new score is greater then current
+                            top.score = hit.score;
+                        }
+                    }
+                } else {
+                    // A document doesn't have group value so
+                    // just add it to collapsed hits list
+                    final var scoreDoc = new CollapsedScoreDoc(hit, slot);
+                    collapsedHits.add(scoreDoc);
+                }
+            }
+        } finally {
+            Releasables.close(groupIds, groupTops);
+        }
 
-            final var prevReaderContext = currentReaderContext;
+        if (collapsedHits.isEmpty()) {
+            // All the hits belong to excluded groups. Elasticsearch does not accept
+            // empty rescored top docs, so return the best hit that the coordinating node drops
+            final var bestHit = Arrays.stream(hits).min(SCORE_DOC_COMPARATOR).orElseThrow();
+            return new TopDocs(topDocs.totalHits, new ScoreDoc[] { bestHit });
+        }
 
-            // find segment that contains current document
-            while (hit.doc >= currentReaderEndDoc) {
-                currentReaderIx++;
-                currentReaderContext = readerContexts.get(currentReaderIx);
-                currentReaderEndDoc = currentReaderContext.docBase +
-                    currentReaderContext.reader().maxDoc();
+        for (var doc : collapsedHits) {
+            doc.maxScore = doc.score;
+            if (ctx.scoreMode != GroupScoreMode.MAX) {
+                doc.score = ctx.scoreMode.score(doc.score, doc.scoreSum, Math.max(doc.groupSize, 1));
             }
+        }
+        collapsedHits.sort(SCORE_DOC_COMPARATOR);
+        if (!ctx.levels.isEmpty()) {
+            collapsedHits = limitLevelGroups(collapsedHits, searcher, ctx);
+        }
 
-            final int docId = hit.doc - currentReaderContext.docBase;
-            if (currentReaderContext != prevReaderContext) {
-                leafComparator = comparator.getLeafComparator(currentReaderContext);
-                leafComparator.setScorer(docScorer);
-                groupValues = ctx.groupField
-                    .load(currentReaderContext)
-                    .getBytesValues();
+        final var numHits = Math.min(collapsedHits.size(), ctx.shardSize);
+        final var collectGroupStats = ctx.collectGroupStats();
+        final var groupStats = collectGroupStats ? new HashMap<Integer, GroupStats>(numHits) : null;
+        final var trimmedHits = new ArrayList<ScoreDoc>(numHits);
+        // Elasticsearch requires only `ScoreDoc` objects in `TopDocs`.
+        // It would be nice to find a way to pass `FieldDoc`s here
+        // but it is not possible at the moment
+        // as it requires also to pass `DocValueFormat[]` somehow
+        for (var doc : collapsedHits.subList(0, numHits)) {
+            if (doc.groupDocs == null) {
+                trimmedHits.add(new ScoreDoc(doc.doc, doc.score, doc.shardIndex));
+                if (collectGroupStats) {
+                    groupStats.put(doc.doc, new GroupStats(doc.maxScore, doc.groupSize));
+                }
+                continue;
             }
+            // All the documents of a group share the group score
+            // so the hits are still sorted by score
+            for (var i = 0; i < doc.groupDocsCount; i++) {
+                final var groupDoc = doc.groupDocs[i];
+                trimmedHits.add(new ScoreDoc(groupDoc.doc, doc.score, groupDoc.shardIndex));
+                if (collectGroupStats) {
+                    // Only the group top carries the group size
+                    groupStats.put(
+                        groupDoc.doc,
+                        i == 0 ?
+                            new GroupStats(doc.maxScore, doc.groupSize) :
+                            new GroupStats(groupDoc.score, 0)
+                    );
+                }
+            }
+        }
+        if (collectGroupStats) {
+            ctx.groupStats(groupStats);
+        }
+        return new TopDocs(
+            topDocs.totalHits, trimmedHits.toArray(new ScoreDoc[0])
+        );
+    }
 
-            docScorer.setDoc(docId);
-            docScorer.setScore(hit.score);
-            leafComparator.copy(slot, docId);
-            final var sortValue = comparator.value(slot);
+    private static FixedBitSet groupLeaders(LeafReaderContext readerContext, Context ctx) throws IOException {
+        if (ctx.leadersKey == null || ctx.groupLeaders == null) {
+            return null;
+        }
+        return ctx.groupLeaders.leaders(readerContext, ctx.leadersKey, ctx.groupFields.get(0), ctx.sort);
+    }
 
-            if (groupValues.advanceExact(docId)) {
-                final var groupValue = groupValues.nextValue();
-                final var top = groupTops.get(groupValue);
+    /**
+     * Remembers a group of the first hit of a run, returns a group top
+     * for the rest of the run or {@code null} if the segment is not sorted by group.
+     */
+    private static CollapsedScoreDoc startRun(
+        boolean isSortedByGroup, BytesRefBuilder runGroupValue, BytesRef groupValue, CollapsedScoreDoc top
+    ) {
+        if (!isSortedByGroup) {
+            return null;
+        }
+        runGroupValue.copyBytes(groupValue);
+        return top;
+    }
 
-                if (top == null) {
-                    // There is no top document for a group value so
-                    // install it
-                    final var scoreDoc = new CollapsedScoreDoc(hit, slot);
-                    collapsedHits.add(scoreDoc);
-                    groupTops.put(
-                        BytesRef.deepCopyOf(groupValue), scoreDoc
-                    );
-                } else {
-                    leafComparator.setBottom(top.slot);
-                    if (reverseMul * leafComparator.compareBottom(docId) > 0) {
-                        // New document is more competitive, replace top document in a group
-                        top.doc = hit.doc;
-                        top.slot = slot;
-                    }
-                    if (hit.score > top.score) {
-                        // Elasticsearch requires scores to be non-decreasing
-                        // Replace top document's score if new score is greater then current
-                        top.score = hit.score;
-                    }
-                }
-            } else {
-                // A document doesn't have group value so
-                // just add it to collapsed hits list
-                final var scoreDoc = new CollapsedScoreDoc(hit, slot);
-                collapsedHits.add(scoreDoc);
+    /**
+     * Checks that the segment is sorted by the group field and then by all the group sort fields
+     * so the documents of a group are adjacent and the first one of them is the most competitive.
+     * Only a single group field without additional group documents is supported.
+     */
+    static boolean isSortedByGroup(LeafReader reader, Context ctx) {
+        if (ctx.groupFields.size() != 1 || ctx.maxPerGroup > 1) {
+            return false;
+        }
+        final var indexSort = reader.getMetaData().getSort();
+        if (indexSort == null) {
+            return false;
+        }
+        final var indexSortFields = indexSort.getSort();
+        final var groupSortFields = ctx.sort.getSort();
+        if (indexSortFields.length < groupSortFields.length + 1) {
+            return false;
+        }
+        // Any order of the group field keeps the group documents together
+        if (!ctx.groupFields.get(0).getFieldName().equals(indexSortFields[0].getField())) {
+            return false;
+        }
+        for (var i = 0; i < groupSortFields.length; i++) {
+            final var groupSortField = groupSortFields[i];
+            final var indexSortField = indexSortFields[i + 1];
+            // Score and script sorts have no field name
+            if (groupSortField.getField() == null ||
+                !groupSortField.getField().equals(indexSortField.getField()) ||
+                groupSortField.getReverse() != indexSortField.getReverse()
+            ) {
+                return false;
             }
         }
+        return true;
+    }
 
-        collapsedHits.sort(SCORE_DOC_COMPARATOR);
+    /**
+     * Keeps groups in score order while every level value has room for one more group.
+     * Level values are read from the group top documents so all the levels are handled
+     * in a single pass over the groups.
+     */
+    private static ArrayList<CollapsedScoreDoc> limitLevelGroups(
+        List<CollapsedScoreDoc> groups, IndexSearcher searcher, Context ctx
+    ) throws IOException {
+        final var levels = ctx.levels;
+        final var numLevels = levels.size();
 
-        final var numHits = Math.min(collapsedHits.size(), ctx.shardSize);
-        final var trimmedHits = collapsedHits.stream()
-            .limit(numHits)
-            // Elasticsearch requires only `ScoreDoc` objects in `TopDocs`.
-            // It would be nice to find a way to pass `FieldDoc`s here
-            // but it is not possible at the moment
-            // as it requires also to pass `DocValueFormat[]` somehow
-            .map(doc -> new ScoreDoc(doc.doc, doc.score, doc.shardIndex))
-            .toArray(ScoreDoc[]::new);
-        return new TopDocs(
-            topDocs.totalHits, trimmedHits
+        final var groupsByDoc = new ArrayList<>(groups);
+        groupsByDoc.sort(DOC_COMPARATOR);
+        for (var group : groupsByDoc) {
+            group.levelValues = new BytesRef[numLevels];
+        }
+        for (var level = 0; level < numLevels; level++) {
+            final var segmentHits = new SegmentHitsIterator(
+                searcher, List.of(ctx.levelFields.get(level))
+            );
+            for (var group : groupsByDoc) {
+                segmentHits.advance(group);
+                final var levelValue = segmentHits.groupValue();
+                if (levelValue != null) {
+                    group.levelValues[level] = BytesRef.deepCopyOf(levelValue);
+                }
+            }
+        }
+
+        final var keptGroups = new ArrayList<CollapsedScoreDoc>(
+            Math.min(groups.size(), ctx.shardSize)
         );
+        // Number of kept groups for every value of every level
+        final var levelGroupIds = new BytesRefHash[numLevels];
+        final var levelGroupCounts = new IntArray[numLevels];
+        try {
+            for (var level = 0; level < numLevels; level++) {
+                levelGroupIds[level] = new BytesRefHash(16, ctx.bigArrays);
+                levelGroupCounts[level] = ctx.bigArrays.newIntArray(16, true);
+            }
+            final var groupLevelIds = new long[numLevels];
+            for (var group : groups) {
+                var isFull = false;
+                for (var level = 0; level < numLevels; level++) {
+                    final var levelValue = group.levelValues[level];
+                    if (levelValue == null) {
+                        groupLevelIds[level] = -1;
+                        continue;
+                    }
+                    var levelGroupId = levelGroupIds[level].add(levelValue);
+                    if (levelGroupId < 0) {
+                        levelGroupId = -1 - levelGroupId;
+                    } else {
+                        levelGroupCounts[level] = ctx.bigArrays.grow(
+                            levelGroupCounts[level], levelGroupId + 1
+                        );
+                    }
+                    groupLevelIds[level] = levelGroupId;
+                    if (levelGroupCounts[level].get(levelGroupId) >= levels.get(level).maxGroups()) {
+                        isFull = true;
+                    }
+                }
+                if (isFull) {
+                    continue;
+                }
+                for (var level = 0; level < numLevels; level++) {
+                    if (groupLevelIds[level] >= 0) {
+                        levelGroupCounts[level].increment(groupLevelIds[level], 1);
+                    }
+                }
+                keptGroups.add(group);
+                if (keptGroups.size() >= ctx.shardSize) {
+                    break;
+                }
+            }
+        } finally {
+            Releasables.close(levelGroupIds);
+            Releasables.close(levelGroupCounts);
+        }
+        return keptGroups;
     }
 
     @Override
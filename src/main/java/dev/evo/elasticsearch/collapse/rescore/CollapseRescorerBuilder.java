@@ -19,6 +19,7 @@
 package dev.evo.elasticsearch.collapse.rescore;
 
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.io.stream.StreamInput;
@@ -27,12 +28,17 @@ import org.elasticsearch.common.xcontent.ConstructingObjectParser;
 import org.elasticsearch.common.xcontent.ObjectParser;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.SearchExecutionContext;
 import org.elasticsearch.index.query.QueryShardException;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.rescore.RescoreContext;
 import org.elasticsearch.search.rescore.RescorerBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.SortBuilder;
 
 import java.io.IOException;
@@ -44,15 +50,41 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
 
     private static final ParseField GROUPING_FIELD = new ParseField("field");
     private static final ParseField SHARD_SIZE_FIELD = new ParseField("shard_size");
+    private static final ParseField MAX_PER_GROUP_FIELD = new ParseField("max_per_group");
+    private static final ParseField TRACK_GROUP_SIZE_FIELD = new ParseField("track_group_size");
+    private static final ParseField SCORE_MODE_FIELD = new ParseField("score_mode");
+    private static final ParseField LEVELS_FIELD = new ParseField("levels");
+    private static final ParseField EXCLUDE_FIELD = new ParseField("exclude");
 
     private static final ConstructingObjectParser<CollapseRescorerBuilder, Void> PARSER =
         new ConstructingObjectParser<>(
             NAME,
-            args -> new CollapseRescorerBuilder((String) args[0])
+            args -> {
+                @SuppressWarnings("unchecked")
+                final var groupFields = (List<String>) args[0];
+                return new CollapseRescorerBuilder(groupFields);
+            }
         );
     static {
-        PARSER.declareString(ConstructingObjectParser.constructorArg(), GROUPING_FIELD);
+        // Either a single field or an array of fields that form a composite group key
+        PARSER.declareStringArray(ConstructingObjectParser.constructorArg(), GROUPING_FIELD);
         PARSER.declareInt(CollapseRescorerBuilder::shardSize, SHARD_SIZE_FIELD);
+        PARSER.declareInt(CollapseRescorerBuilder::maxPerGroup, MAX_PER_GROUP_FIELD);
+        PARSER.declareBoolean(CollapseRescorerBuilder::trackGroupSize, TRACK_GROUP_SIZE_FIELD);
+        PARSER.declareString(
+            (builder, scoreMode) -> builder.scoreMode(GroupScoreMode.fromString(scoreMode)),
+            SCORE_MODE_FIELD
+        );
+        PARSER.declareObjectArray(
+            CollapseRescorerBuilder::levels,
+            (parser, ctx) -> GroupLevel.fromXContent(parser),
+            LEVELS_FIELD
+        );
+        PARSER.declareObject(
+            CollapseRescorerBuilder::exclude,
+            (parser, ctx) -> GroupBloomFilter.fromXContent(parser),
+            EXCLUDE_FIELD
+        );
         PARSER.declareField(
             CollapseRescorerBuilder::setSorts,
             (parser, ctx) -> SortBuilder.fromXContent(parser),
@@ -61,8 +93,13 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
         );
     }
 
-    private final String groupField;
+    private final List<String> groupFields;
     private int shardSize = -1;
+    private int maxPerGroup = 1;
+    private boolean trackGroupSize = false;
+    private GroupScoreMode scoreMode = GroupScoreMode.MAX;
+    private List<GroupLevel> levels = List.of();
+    private GroupBloomFilter exclude = null;
     private List<SortBuilder<?>> sorts;
 
     public static CollapseRescorerBuilder fromXContent(XContentParser parser)
@@ -72,15 +109,29 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
     }
 
     public CollapseRescorerBuilder(String groupField) {
+        this(List.of(groupField));
+    }
+
+    public CollapseRescorerBuilder(List<String> groupFields) {
         super();
-        this.groupField = groupField;
+        if (groupFields.isEmpty()) {
+            throw new IllegalArgumentException(
+                "[" + GROUPING_FIELD.getPreferredName() + "] must not be empty"
+            );
+        }
+        this.groupFields = groupFields;
         this.sorts = new ArrayList<>();
     }
 
     public CollapseRescorerBuilder(StreamInput in) throws IOException {
         super(in);
-        groupField = in.readString();
+        groupFields = in.readStringList();
         shardSize = in.readInt();
+        maxPerGroup = in.readVInt();
+        trackGroupSize = in.readBoolean();
+        scoreMode = GroupScoreMode.readFromStream(in);
+        levels = in.readList(GroupLevel::new);
+        exclude = in.readOptionalWriteable(GroupBloomFilter::new);
         final int size = in.readVInt();
         sorts = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
@@ -90,8 +141,13 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
 
     @Override
     protected void doWriteTo(StreamOutput out) throws IOException {
-        out.writeString(groupField);
+        out.writeStringCollection(groupFields);
         out.writeInt(shardSize);
+        out.writeVInt(maxPerGroup);
+        out.writeBoolean(trackGroupSize);
+        scoreMode.writeTo(out);
+        out.writeList(levels);
+        out.writeOptionalWriteable(exclude);
         out.writeVInt(sorts.size());
         for (var sort : sorts) {
             out.writeNamedWriteable(sort);
@@ -107,6 +163,56 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
         return this;
     }
 
+    public int maxPerGroup() {
+        return maxPerGroup;
+    }
+
+    public CollapseRescorerBuilder maxPerGroup(int maxPerGroup) {
+        if (maxPerGroup < 1) {
+            throw new IllegalArgumentException(
+                "[" + MAX_PER_GROUP_FIELD.getPreferredName() + "] must be greater than 0"
+            );
+        }
+        this.maxPerGroup = maxPerGroup;
+        return this;
+    }
+
+    public boolean trackGroupSize() {
+        return trackGroupSize;
+    }
+
+    public CollapseRescorerBuilder trackGroupSize(boolean trackGroupSize) {
+        this.trackGroupSize = trackGroupSize;
+        return this;
+    }
+
+    public GroupScoreMode scoreMode() {
+        return scoreMode;
+    }
+
+    public CollapseRescorerBuilder scoreMode(GroupScoreMode scoreMode) {
+        this.scoreMode = scoreMode;
+        return this;
+    }
+
+    public List<GroupLevel> levels() {
+        return levels;
+    }
+
+    public CollapseRescorerBuilder levels(List<GroupLevel> levels) {
+        this.levels = levels;
+        return this;
+    }
+
+    public GroupBloomFilter exclude() {
+        return exclude;
+    }
+
+    public CollapseRescorerBuilder exclude(GroupBloomFilter exclude) {
+        this.exclude = exclude;
+        return this;
+    }
+
     public CollapseRescorerBuilder setSorts(List<SortBuilder<?>> sorts) {
         this.sorts = sorts;
         return this;
@@ -125,7 +231,26 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
-        builder.field(GROUPING_FIELD.getPreferredName(), groupField);
+        if (groupFields.size() == 1) {
+            builder.field(GROUPING_FIELD.getPreferredName(), groupFields.get(0));
+        } else {
+            builder.field(GROUPING_FIELD.getPreferredName(), groupFields);
+        }
+        if (maxPerGroup > 1) {
+            builder.field(MAX_PER_GROUP_FIELD.getPreferredName(), maxPerGroup);
+        }
+        if (trackGroupSize) {
+            builder.field(TRACK_GROUP_SIZE_FIELD.getPreferredName(), trackGroupSize);
+        }
+        if (scoreMode != GroupScoreMode.MAX) {
+            builder.field(SCORE_MODE_FIELD.getPreferredName(), scoreMode.toString());
+        }
+        if (!levels.isEmpty()) {
+            builder.field(LEVELS_FIELD.getPreferredName(), levels);
+        }
+        if (exclude != null) {
+            builder.field(EXCLUDE_FIELD.getPreferredName(), exclude);
+        }
         builder.endObject();
     }
 
@@ -133,19 +258,87 @@ public class CollapseRescorerBuilder extends RescorerBuilder<CollapseRescorerBui
     protected RescoreContext innerBuildContext(
         int windowSize, SearchExecutionContext context
     ) throws IOException {
-        final var groupFieldType = context.getFieldType(groupField);
-        if (groupFieldType == null) {
-            throw new QueryShardException(
-                context, "no mapping found for `" + groupField + "` in order to collapse on"
-            );
+        final var groupFieldsData = new ArrayList<IndexFieldData<?>>(groupFields.size());
+        for (var groupField : groupFields) {
+            final var groupFieldType = context.getFieldType(groupField);
+            if (groupFieldType == null) {
+                throw new QueryShardException(
+                    context, "no mapping found for `" + groupField + "` in order to collapse on"
+                );
+            }
+            final var groupFieldData = context.getForField(groupFieldType);
+            if (exclude != null && !isExcludable(groupFieldType, groupFieldData)) {
+                throw new QueryShardException(
+                    context,
+                    "[" + EXCLUDE_FIELD.getPreferredName() + "] supports only keyword and integer fields, " +
+                        "`" + groupField + "` is of type [" + groupFieldType.typeName() + "]"
+                );
+            }
+            groupFieldsData.add(groupFieldData);
+        }
+        final var levelFieldsData = new ArrayList<IndexFieldData<?>>(levels.size());
+        for (var level : levels) {
+            final var levelFieldType = context.getFieldType(level.field());
+            if (levelFieldType == null) {
+                throw new QueryShardException(
+                    context, "no mapping found for `" + level.field() + "` in order to group on"
+                );
+            }
+            levelFieldsData.add(context.getForField(levelFieldType));
         }
-        final var groupFieldData = context.getForField(groupFieldType);
         var shardSize = this.shardSize < 0 ? windowSize : this.shardSize;
         var sort = SortBuilder.buildSort(sorts, context)
             .map(s -> s.sort)
             .orElse(Sort.RELEVANCE);
         return new CollapseRescorer.Context(
-            windowSize, groupFieldData, shardSize, sort
-        );
+            windowSize, groupFieldsData, shardSize, maxPerGroup, sort, scoreMode, trackGroupSize
+        )
+            .levels(levels, levelFieldsData)
+            .excludedGroups(exclude)
+            .leadersKey(leadersKey(sort));
+    }
+
+    /**
+     * Excluded groups are hashed from doc values of the group field, they match
+     * the string representation of the group values only for keyword and integer fields.
+     */
+    private static boolean isExcludable(MappedFieldType fieldType, IndexFieldData<?> fieldData) {
+        if (fieldType instanceof KeywordFieldMapper.KeywordFieldType) {
+            return true;
+        }
+        if (fieldData instanceof IndexNumericFieldData) {
+            switch (((IndexNumericFieldData) fieldData).getNumericType()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Field sorts do not depend on a query so the best documents of the groups
+     * can be found once per segment. Returns {@code null} for other sorts.
+     */
+    private String leadersKey(Sort sort) {
+        if (groupFields.size() != 1 || maxPerGroup > 1 || sorts.isEmpty()) {
+            return null;
+        }
+        for (var sortBuilder : sorts) {
+            if (!(sortBuilder instanceof FieldSortBuilder)) {
+                return null;
+            }
+        }
+        for (var sortField : sort.getSort()) {
+            // Field sort builder can also sort by score
+            if (sortField.getType() == SortField.Type.SCORE) {
+                return null;
+            }
+        }
+        return groupFields.get(0) + sorts;
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.util.Map;
+
+/**
+ * Provides shard level services to the group rescorer contexts.
+ *
+ * Rescore contexts are built from a {@link org.elasticsearch.index.query.SearchExecutionContext}
+ * that does not expose big arrays nor node level caches,
+ * so we hand them over right before the query phase.
+ *
+ * Fetch phase can be executed within another search context, so the data collected
+ * by the rescorers is kept in the reader context between the phases.
+ */
+public class CollapseSearchOperationListener implements SearchOperationListener {
+    private static final String GROUP_STATS_KEY = "collapse_group_stats";
+    private static final String GROUP_POSITIONS_KEY = "collapse_group_positions_";
+
+    private final GroupLeadersCache groupLeaders;
+
+    public CollapseSearchOperationListener(GroupLeadersCache groupLeaders) {
+        this.groupLeaders = groupLeaders;
+    }
+
+    @Override
+    public void onPreQueryPhase(SearchContext searchContext) {
+        final var rescoreContexts = searchContext.rescore();
+        if (rescoreContexts.isEmpty()) {
+            return;
+        }
+        final var bigArrays = searchContext.readerContext()
+            .indexService()
+            .getBigArrays()
+            .withCircuitBreaking();
+        for (var rescoreContext : rescoreContexts) {
+            if (rescoreContext instanceof GroupRescoreContext) {
+                ((GroupRescoreContext) rescoreContext).bigArrays(bigArrays);
+            }
+            if (rescoreContext instanceof CollapseRescorer.Context && groupLeaders.enabled()) {
+                ((CollapseRescorer.Context) rescoreContext).groupLeaders(groupLeaders);
+            }
+            if (rescoreContext instanceof GroupDecayRescorer.Context && searchContext.explain()) {
+                ((GroupDecayRescorer.Context) rescoreContext).collectGroupPositions();
+            }
+        }
+    }
+
+    @Override
+    public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+        final var rescoreContexts = searchContext.rescore();
+        for (var i = 0; i < rescoreContexts.size(); i++) {
+            final var rescoreContext = rescoreContexts.get(i);
+            if (rescoreContext instanceof GroupDecayRescorer.Context) {
+                final var groupPositions = ((GroupDecayRescorer.Context) rescoreContext).groupPositions;
+                if (groupPositions != null) {
+                    searchContext.readerContext().putInContext(GROUP_POSITIONS_KEY + i, groupPositions);
+                }
+            }
+            if (rescoreContext instanceof CollapseRescorer.Context) {
+                final var groupStats = ((CollapseRescorer.Context) rescoreContext).groupStats;
+                if (groupStats != null) {
+                    searchContext.readerContext().putInContext(GROUP_STATS_KEY, groupStats);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onPreFetchPhase(SearchContext searchContext) {
+        final var rescoreContexts = searchContext.rescore();
+        for (var i = 0; i < rescoreContexts.size(); i++) {
+            final var rescoreContext = rescoreContexts.get(i);
+            if (rescoreContext instanceof GroupDecayRescorer.Context && searchContext.explain()) {
+                final var decayContext = (GroupDecayRescorer.Context) rescoreContext;
+                if (decayContext.groupPositions == null) {
+                    final Map<Integer, Integer> groupPositions = searchContext.readerContext()
+                        .getFromContext(GROUP_POSITIONS_KEY + i);
+                    decayContext.groupPositions(groupPositions);
+                }
+            }
+            if (rescoreContext instanceof CollapseRescorer.Context) {
+                final var collapseContext = (CollapseRescorer.Context) rescoreContext;
+                if (collapseContext.collectGroupStats() && collapseContext.groupStats == null) {
+                    final Map<Integer, CollapseRescorer.GroupStats> groupStats = searchContext.readerContext()
+                        .getFromContext(GROUP_STATS_KEY);
+                    collapseContext.groupStats(groupStats);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ConstructingObjectParser;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Bloom filter of group values supplied by a client, for example groups that have already been shown.
+ *
+ * <p>A group value is hashed as UTF-8 bytes of its string representation with 128-bit x64 murmur3
+ * (seed {@code 0}) giving {@code h1} and {@code h2}. The {@code i}-th bit is
+ * {@code ((h1 + i * h2) & Long.MAX_VALUE) % numBits} where bit {@code n} is
+ * the {@code n % 8} least significant bit of the byte {@code n / 8}.
+ *
+ * <p>Shards hash doc values of the group field, they match the string representation only
+ * for keyword and integer fields, so the filter is restricted to such fields.
+ *
+ * <p>The filter is immutable, use {@link Builder} to fill a new one.
+ */
+public class GroupBloomFilter implements Writeable, ToXContentObject {
+    private static final ParseField BITS_FIELD = new ParseField("bits");
+    private static final ParseField NUM_HASHES_FIELD = new ParseField("num_hashes");
+
+    private static final ConstructingObjectParser<GroupBloomFilter, Void> PARSER =
+        new ConstructingObjectParser<>(
+            "bloom_filter",
+            args -> new GroupBloomFilter(
+                Base64.getDecoder().decode((String) args[0]), (int) args[1]
+            )
+        );
+    static {
+        PARSER.declareString(ConstructingObjectParser.constructorArg(), BITS_FIELD);
+        PARSER.declareInt(ConstructingObjectParser.constructorArg(), NUM_HASHES_FIELD);
+    }
+
+    private final byte[] bits;
+    private final long numBits;
+    private final int numHashes;
+
+    public static GroupBloomFilter fromXContent(XContentParser parser) {
+        return PARSER.apply(parser, null);
+    }
+
+    public GroupBloomFilter(byte[] bits, int numHashes) {
+        if (bits.length == 0) {
+            throw new IllegalArgumentException(
+                "[" + BITS_FIELD.getPreferredName() + "] must not be empty"
+            );
+        }
+        if (numHashes < 1) {
+            throw new IllegalArgumentException(
+                "[" + NUM_HASHES_FIELD.getPreferredName() + "] must be greater than 0"
+            );
+        }
+        // Filter is shared between requests built from the same one, so it is never modified
+        this.bits = bits.clone();
+        this.numBits = (long) bits.length * 8;
+        this.numHashes = numHashes;
+    }
+
+    public GroupBloomFilter(StreamInput in) throws IOException {
+        this(in.readByteArray(), in.readVInt());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeByteArray(bits);
+        out.writeVInt(numHashes);
+    }
+
+    public boolean mightContain(String groupValue) {
+        return mightContain(hash(groupValue));
+    }
+
+    /**
+     * Checks if the group value might be in the filter. The hash object is reused between calls.
+     */
+    public boolean mightContain(BytesRef groupValue, MurmurHash3.Hash128 hash) {
+        MurmurHash3.hash128(groupValue.bytes, groupValue.offset, groupValue.length, 0, hash);
+        return mightContain(hash);
+    }
+
+    private static MurmurHash3.Hash128 hash(String groupValue) {
+        final var value = groupValue.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(value, 0, value.length, 0, new MurmurHash3.Hash128());
+    }
+
+    private boolean mightContain(MurmurHash3.Hash128 hash) {
+        var combinedHash = hash.h1;
+        for (var i = 0; i < numHashes; i++) {
+            final var bit = (combinedHash & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 3)] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+            combinedHash += hash.h2;
+        }
+        return true;
+    }
+
+    /**
+     * Fills bits of a new filter.
+     */
+    public static class Builder {
+        private final byte[] bits;
+        private final long numBits;
+        private final int numHashes;
+
+        public Builder(int numBits, int numHashes) {
+            this.bits = new byte[(numBits + 7) / 8];
+            this.numBits = (long) bits.length * 8;
+            this.numHashes = numHashes;
+        }
+
+        public Builder add(String groupValue) {
+            final var hash = hash(groupValue);
+            var combinedHash = hash.h1;
+            for (var i = 0; i < numHashes; i++) {
+                final var bit = (combinedHash & Long.MAX_VALUE) % numBits;
+                bits[(int) (bit >>> 3)] |= 1 << (bit & 7);
+                combinedHash += hash.h2;
+            }
+            return this;
+        }
+
+        public GroupBloomFilter build() {
+            return new GroupBloomFilter(bits, numHashes);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(BITS_FIELD.getPreferredName(), Base64.getEncoder().encodeToString(bits));
+        builder.field(NUM_HASHES_FIELD.getPreferredName(), numHashes);
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(bits) + numHashes;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof GroupBloomFilter)) {
+            return false;
+        }
+        var other = (GroupBloomFilter) obj;
+        return Arrays.equals(other.bits, bits) &&
+            other.numHashes == numHashes;
+    }
+}
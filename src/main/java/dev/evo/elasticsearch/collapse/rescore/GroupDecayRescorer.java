@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BytesRefHash;
+import org.elasticsearch.common.util.IntArray;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.rescore.RescoreContext;
+import org.elasticsearch.search.rescore.Rescorer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deboosts hits of the same group: score of the k-th hit of a group
+ * (counting from zero in score order) is multiplied by {@code decay ^ k}.
+ */
+public class GroupDecayRescorer implements Rescorer {
+
+    private static final GroupDecayRescorer INSTANCE = new GroupDecayRescorer();
+
+    private static final long NO_GROUP = -1;
+
+    static class Context extends GroupRescoreContext {
+        final float decay;
+        // Positions of the hits inside their groups keyed by a global doc id.
+        // Collected only when the search should be explained,
+        // see CollapseSearchOperationListener
+        boolean collectGroupPositions;
+        Map<Integer, Integer> groupPositions;
+
+        Context(int windowSize, IndexFieldData<?> groupField, float decay) {
+            super(windowSize, INSTANCE, List.of(groupField));
+            this.decay = decay;
+        }
+
+        void collectGroupPositions() {
+            this.collectGroupPositions = true;
+        }
+
+        void groupPositions(Map<Integer, Integer> groupPositions) {
+            this.groupPositions = groupPositions;
+        }
+    }
+
+    @Override
+    public TopDocs rescore(
+        TopDocs topDocs, IndexSearcher searcher, RescoreContext rescoreContext
+    ) throws IOException {
+        final var ctx = (Context) rescoreContext;
+        if (topDocs == null || topDocs.totalHits.value == 0 || topDocs.scoreDocs.length == 0) {
+            return topDocs;
+        }
+
+        final var hits = topDocs.scoreDocs;
+
+        final var size = Math.min(ctx.getWindowSize(), hits.length);
+        if (size <= 0) {
+            return topDocs;
+        }
+
+        // Group values must be read in doc id order but decay is applied in score order,
+        // so pack a doc id together with a hit position and sort them
+        final var docPositions = new long[size];
+        for (var pos = 0; pos < size; pos++) {
+            docPositions[pos] = ((long) hits[pos].doc << 32) | pos;
+        }
+        Arrays.sort(docPositions);
+
+        final var segmentHits = new SegmentHitsIterator(searcher, ctx.groupFields);
+        final var hitGroups = new long[size];
+        final var groupPositions = ctx.collectGroupPositions ? new HashMap<Integer, Integer>(size) : null;
+        final var groupIds = new BytesRefHash(size, ctx.bigArrays);
+        IntArray groupCounts = null;
+        try {
+            for (var docPosition : docPositions) {
+                final var pos = (int) docPosition;
+                segmentHits.advance(hits[pos]);
+                final var groupValue = segmentHits.groupValue();
+                if (groupValue != null) {
+                    final var groupId = groupIds.add(groupValue);
+                    hitGroups[pos] = groupId >= 0 ? groupId : -1 - groupId;
+                } else {
+                    // Hits without a group value are never deboosted
+                    hitGroups[pos] = NO_GROUP;
+                }
+            }
+
+            groupCounts = ctx.bigArrays.newIntArray(Math.max(groupIds.size(), 1));
+            for (var pos = 0; pos < size; pos++) {
+                final var groupId = hitGroups[pos];
+                if (groupId == NO_GROUP) {
+                    continue;
+                }
+                final var k = groupCounts.increment(groupId, 1) - 1;
+                if (groupPositions != null) {
+                    groupPositions.put(hits[pos].doc, k);
+                }
+                if (k > 0) {
+                    hits[pos].score *= (float) Math.pow(ctx.decay, k);
+                }
+            }
+        } finally {
+            Releasables.close(groupIds, groupCounts);
+        }
+        if (groupPositions != null) {
+            ctx.groupPositions(groupPositions);
+        }
+
+        // Deboosted hits can fall below the hits outside of the window
+        // but Elasticsearch requires top docs to be sorted by score
+        Arrays.sort(hits, CollapseRescorer.SCORE_DOC_COMPARATOR);
+        return new TopDocs(topDocs.totalHits, hits);
+    }
+
+    @Override
+    public Explanation explain(
+        int topLevelDocId,
+        IndexSearcher searcher,
+        RescoreContext rescoreContext,
+        Explanation sourceExplanation
+    ) {
+        final var ctx = (Context) rescoreContext;
+        // Position of a hit depends on the other hits of the window,
+        // so we can only explain hits that were seen by the rescorer
+        final var groupPositions = ctx.groupPositions;
+        final var k = groupPositions != null ? groupPositions.get(topLevelDocId) : null;
+        if (k == null) {
+            return sourceExplanation;
+        }
+        final var factor = (float) Math.pow(ctx.decay, k);
+        return Explanation.match(
+            sourceExplanation.getValue().floatValue() * factor,
+            "product of:",
+            sourceExplanation,
+            Explanation.match(
+                factor,
+                "group decay, decay [" + ctx.decay + "] ^ position in group [" + k + "]"
+            )
+        );
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ConstructingObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.index.query.SearchExecutionContext;
+import org.elasticsearch.search.rescore.RescoreContext;
+import org.elasticsearch.search.rescore.RescorerBuilder;
+
+import java.io.IOException;
+import java.util.Objects;
+
+public class GroupDecayRescorerBuilder extends RescorerBuilder<GroupDecayRescorerBuilder> {
+    public static final String NAME = "group_decay";
+
+    private static final ParseField GROUPING_FIELD = new ParseField("field");
+    private static final ParseField DECAY_FIELD = new ParseField("decay");
+    private static final float DEFAULT_DECAY = 0.8F;
+
+    private static final ConstructingObjectParser<GroupDecayRescorerBuilder, Void> PARSER =
+        new ConstructingObjectParser<>(
+            NAME,
+            args -> new GroupDecayRescorerBuilder((String) args[0])
+        );
+    static {
+        PARSER.declareString(ConstructingObjectParser.constructorArg(), GROUPING_FIELD);
+        PARSER.declareFloat(GroupDecayRescorerBuilder::decay, DECAY_FIELD);
+    }
+
+    private final String groupField;
+    private float decay = DEFAULT_DECAY;
+
+    public static GroupDecayRescorerBuilder fromXContent(XContentParser parser)
+        throws ParsingException
+    {
+         return PARSER.apply(parser, null);
+    }
+
+    public GroupDecayRescorerBuilder(String groupField) {
+        super();
+        this.groupField = groupField;
+    }
+
+    public GroupDecayRescorerBuilder(StreamInput in) throws IOException {
+        super(in);
+        groupField = in.readString();
+        decay = in.readFloat();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(groupField);
+        out.writeFloat(decay);
+    }
+
+    public String groupField() {
+        return groupField;
+    }
+
+    public float decay() {
+        return decay;
+    }
+
+    public GroupDecayRescorerBuilder decay(float decay) {
+        if (decay < 0.0F || decay > 1.0F) {
+            throw new IllegalArgumentException(
+                "[" + DECAY_FIELD.getPreferredName() + "] must be between 0 and 1"
+            );
+        }
+        this.decay = decay;
+        return this;
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public RescorerBuilder<GroupDecayRescorerBuilder> rewrite(QueryRewriteContext ctx) {
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(GROUPING_FIELD.getPreferredName(), groupField);
+        builder.field(DECAY_FIELD.getPreferredName(), decay);
+        builder.endObject();
+    }
+
+    @Override
+    protected RescoreContext innerBuildContext(
+        int windowSize, SearchExecutionContext context
+    ) throws IOException {
+        final var groupFieldType = context.getFieldType(groupField);
+        if (groupFieldType == null) {
+            throw new QueryShardException(
+                context, "no mapping found for `" + groupField + "` in order to group on"
+            );
+        }
+        final var groupFieldData = context.getForField(groupFieldType);
+        return new GroupDecayRescorer.Context(windowSize, groupFieldData, decay);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), groupField, decay);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        var other = (GroupDecayRescorerBuilder) obj;
+        return other.groupField.equals(groupField) &&
+            other.decay == decay;
+    }
+}
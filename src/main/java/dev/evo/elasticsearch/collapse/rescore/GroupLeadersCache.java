@@ -0,0 +1,337 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.BytesRefHash;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.ShardUtils;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the most competitive documents of every group inside a segment
+ * for group sorts that do not depend on a query.
+ *
+ * Leaders are built from the live documents of a segment, so they are shared by all the readers
+ * of a segment core only while the core has no deletions, otherwise they belong to a single reader.
+ * Entries are evicted when their reader is closed or when the cache exceeds its size.
+ *
+ * Searches only look the leaders up. The leaders missed by a search are built in the background
+ * by the {@link dev.evo.elasticsearch.collapse.CollapseFieldsWarmer}, and their memory is accounted
+ * by a separate circuit breaker.
+ */
+public class GroupLeadersCache implements ToXContentObject {
+    private static final Logger LOGGER = LogManager.getLogger(GroupLeadersCache.class);
+
+    public static final Setting<Boolean> COLLAPSE_GROUP_LEADERS_CACHE_ENABLED = Setting.boolSetting(
+        "collapse.group_leaders_cache.enabled", true, Setting.Property.NodeScope
+    );
+
+    public static final Setting<ByteSizeValue> COLLAPSE_GROUP_LEADERS_CACHE_SIZE = Setting.memorySizeSetting(
+        "collapse.group_leaders_cache.size", "1%", Setting.Property.NodeScope
+    );
+
+    public static final String CIRCUIT_BREAKER_NAME = "collapse_group_leaders";
+
+    // Number of different sorts built for a single shard
+    private static final int MAX_SORTS_PER_SHARD = 8;
+
+    private static final Scorable NO_SCORE = new Scorable() {
+        @Override
+        public int docID() {
+            return -1;
+        }
+
+        @Override
+        public float score() {
+            return 0.0F;
+        }
+    };
+
+    private final boolean enabled;
+    private final Cache<Key, FixedBitSet> cache;
+    // Keys of the cached leaders of every reader, so they can be dropped together with the reader
+    private final Map<IndexReader.CacheKey, Set<Key>> readerKeys = new ConcurrentHashMap<>();
+    // Leaders that were missed by searches, keyed by the sort key
+    private final Map<ShardId, Map<String, RequestedLeaders>> requestedLeaders = new ConcurrentHashMap<>();
+    private final LongAdder evictions = new LongAdder();
+    private volatile CircuitBreaker breaker = new NoopCircuitBreaker(CIRCUIT_BREAKER_NAME);
+
+    public GroupLeadersCache(Settings settings) {
+        this.enabled = COLLAPSE_GROUP_LEADERS_CACHE_ENABLED.get(settings);
+        this.cache = CacheBuilder.<Key, FixedBitSet>builder()
+            .setMaximumWeight(COLLAPSE_GROUP_LEADERS_CACHE_SIZE.get(settings).getBytes())
+            .weigher((key, leaders) -> leaders.ramBytesUsed())
+            .removalListener(this::onRemoval)
+            .build();
+    }
+
+    /**
+     * Settings of the circuit breaker that accounts memory of the cached leaders.
+     * The breaker has no limit of its own, only the parent breaker can trip it.
+     */
+    public static BreakerSettings breakerSettings(Settings settings) {
+        return BreakerSettings.updateFromSettings(
+            new BreakerSettings(
+                CIRCUIT_BREAKER_NAME, -1, 1.0, CircuitBreaker.Type.MEMORY, CircuitBreaker.Durability.PERMANENT
+            ),
+            settings
+        );
+    }
+
+    public void breaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns documents of the segment that are the most competitive in their groups
+     * or {@code null} if the leaders are not cached for the segment.
+     * Missed leaders are built later by {@link #build(ShardId, DirectoryReader)}.
+     */
+    FixedBitSet leaders(
+        LeafReaderContext readerContext, String key, IndexFieldData<?> groupField, Sort sort
+    ) {
+        final var reader = readerContext.reader();
+        final var cacheHelper = cacheHelper(reader);
+        if (cacheHelper == null) {
+            return null;
+        }
+        final var leaders = cache.get(new Key(cacheHelper.getKey(), key));
+        if (leaders == null) {
+            request(reader, key, groupField, sort);
+        }
+        return leaders;
+    }
+
+    private void request(LeafReader reader, String key, IndexFieldData<?> groupField, Sort sort) {
+        final var shardId = ShardUtils.extractShardId(reader);
+        if (shardId == null) {
+            return;
+        }
+        final var shardRequests = requestedLeaders.computeIfAbsent(shardId, id -> new ConcurrentHashMap<>());
+        if (shardRequests.size() < MAX_SORTS_PER_SHARD) {
+            shardRequests.putIfAbsent(key, new RequestedLeaders(groupField, sort));
+        }
+    }
+
+    public boolean hasRequestedLeaders(ShardId shardId) {
+        return requestedLeaders.containsKey(shardId);
+    }
+
+    /**
+     * Builds the requested leaders that are missing for the segments of the reader.
+     */
+    public void build(ShardId shardId, DirectoryReader reader) throws IOException {
+        final var shardRequests = requestedLeaders.get(shardId);
+        if (shardRequests == null) {
+            return;
+        }
+        for (var readerContext : reader.leaves()) {
+            final var cacheHelper = cacheHelper(readerContext.reader());
+            if (cacheHelper == null) {
+                continue;
+            }
+            final var readerKey = cacheHelper.getKey();
+            for (var request : shardRequests.entrySet()) {
+                final var key = new Key(readerKey, request.getKey());
+                final var cachedKeys = readerKeys.get(readerKey);
+                if (cachedKeys != null && cachedKeys.contains(key)) {
+                    continue;
+                }
+                final var leaders = buildLeaders(readerContext, request.getValue().groupField, request.getValue().sort);
+                try {
+                    breaker.addEstimateBytesAndMaybeBreak(leaders.ramBytesUsed(), CIRCUIT_BREAKER_NAME);
+                } catch (CircuitBreakingException e) {
+                    LOGGER.debug(new ParameterizedMessage("not enough memory to cache group leaders of {}", shardId), e);
+                    return;
+                }
+                readerKeys.computeIfAbsent(readerKey, k -> {
+                    cacheHelper.addClosedListener(this::onClose);
+                    return ConcurrentHashMap.newKeySet();
+                }).add(key);
+                cache.put(key, leaders);
+            }
+        }
+    }
+
+    /**
+     * Forgets leaders requested for a closed shard.
+     */
+    public void clear(ShardId shardId) {
+        requestedLeaders.remove(shardId);
+    }
+
+    private void onClose(IndexReader.CacheKey readerKey) {
+        final var keys = readerKeys.remove(readerKey);
+        if (keys != null) {
+            for (var key : keys) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    private void onRemoval(RemovalNotification<Key, FixedBitSet> notification) {
+        breaker.addWithoutBreaking(-notification.getValue().ramBytesUsed());
+        if (notification.getRemovalReason() == RemovalNotification.RemovalReason.REPLACED) {
+            return;
+        }
+        evictions.increment();
+        final var keys = readerKeys.get(notification.getKey().readerKey);
+        if (keys != null) {
+            keys.remove(notification.getKey());
+        }
+    }
+
+    /**
+     * Leaders are built from live documents so all the readers of a core can share them
+     * only while the core has no deletions.
+     */
+    private static IndexReader.CacheHelper cacheHelper(LeafReader reader) {
+        return reader.getLiveDocs() == null ? reader.getCoreCacheHelper() : reader.getReaderCacheHelper();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        final var stats = cache.stats();
+        builder.startObject();
+        builder.field("enabled", enabled);
+        builder.field("count", cache.count());
+        builder.humanReadableField("memory_size_in_bytes", "memory_size", new ByteSizeValue(cache.weight()));
+        builder.field("hit_count", stats.getHits());
+        builder.field("miss_count", stats.getMisses());
+        builder.field("evictions", evictions.sum());
+        builder.endObject();
+        return builder;
+    }
+
+    private static FixedBitSet buildLeaders(
+        LeafReaderContext readerContext, IndexFieldData<?> groupField, Sort sort
+    ) throws IOException {
+        final var reader = readerContext.reader();
+        final var maxDoc = reader.maxDoc();
+        final var liveDocs = reader.getLiveDocs();
+        final var leaders = new FixedBitSet(maxDoc);
+        try (var groupIds = new BytesRefHash(16, BigArrays.NON_RECYCLING_INSTANCE)) {
+            // The first pass finds out the number of groups, so that the comparator
+            // only needs a slot per group
+            var groupValues = groupField.load(readerContext).getBytesValues();
+            for (var docId = 0; docId < maxDoc; docId++) {
+                if ((liveDocs == null || liveDocs.get(docId)) && groupValues.advanceExact(docId)) {
+                    groupIds.add(groupValues.nextValue());
+                }
+            }
+            final var numGroups = (int) groupIds.size();
+            if (numGroups == 0) {
+                return leaders;
+            }
+
+            final var comparator = new CollapseRescorer.GroupDocComparator(sort, numGroups);
+            comparator.setLeaf(readerContext, NO_SCORE);
+            final var leaderDocs = new int[numGroups];
+            Arrays.fill(leaderDocs, -1);
+            groupValues = groupField.load(readerContext).getBytesValues();
+            for (var docId = 0; docId < maxDoc; docId++) {
+                if ((liveDocs != null && !liveDocs.get(docId)) || !groupValues.advanceExact(docId)) {
+                    continue;
+                }
+                final var groupId = (int) groupIds.find(groupValues.nextValue());
+                final var leaderDoc = leaderDocs[groupId];
+                if (leaderDoc >= 0) {
+                    // Ties are won by the first document as in the rescorer
+                    if (comparator.compare(groupId, docId) <= 0) {
+                        continue;
+                    }
+                    leaders.clear(leaderDoc);
+                }
+                comparator.copy(groupId, docId);
+                leaderDocs[groupId] = docId;
+                leaders.set(docId);
+            }
+        }
+        return leaders;
+    }
+
+    private static final class Key {
+        final IndexReader.CacheKey readerKey;
+        final String leadersKey;
+
+        Key(IndexReader.CacheKey readerKey, String leadersKey) {
+            this.readerKey = readerKey;
+            this.leadersKey = leadersKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(readerKey, leadersKey);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final var other = (Key) obj;
+            return readerKey == other.readerKey && leadersKey.equals(other.leadersKey);
+        }
+    }
+
+    private static final class RequestedLeaders {
+        final IndexFieldData<?> groupField;
+        final Sort sort;
+
+        RequestedLeaders(IndexFieldData<?> groupField, Sort sort) {
+            this.groupField = groupField;
+            this.sort = sort;
+        }
+    }
+}
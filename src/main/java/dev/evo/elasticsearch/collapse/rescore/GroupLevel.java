@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ConstructingObjectParser;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * An upper level of grouping: at most {@code max_groups} collapsed groups
+ * are kept for every value of the level field. Groups without a level value are not limited.
+ */
+public class GroupLevel implements Writeable, ToXContentObject {
+    private static final ParseField LEVEL_FIELD = new ParseField("field");
+    private static final ParseField MAX_GROUPS_FIELD = new ParseField("max_groups");
+
+    private static final ConstructingObjectParser<GroupLevel, Void> PARSER =
+        new ConstructingObjectParser<>(
+            "level",
+            args -> new GroupLevel((String) args[0], (int) args[1])
+        );
+    static {
+        PARSER.declareString(ConstructingObjectParser.constructorArg(), LEVEL_FIELD);
+        PARSER.declareInt(ConstructingObjectParser.constructorArg(), MAX_GROUPS_FIELD);
+    }
+
+    private final String field;
+    private final int maxGroups;
+
+    public static GroupLevel fromXContent(XContentParser parser) {
+        return PARSER.apply(parser, null);
+    }
+
+    public GroupLevel(String field, int maxGroups) {
+        if (maxGroups < 1) {
+            throw new IllegalArgumentException(
+                "[" + MAX_GROUPS_FIELD.getPreferredName() + "] must be greater than 0"
+            );
+        }
+        this.field = Objects.requireNonNull(field);
+        this.maxGroups = maxGroups;
+    }
+
+    public GroupLevel(StreamInput in) throws IOException {
+        field = in.readString();
+        maxGroups = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeVInt(maxGroups);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public int maxGroups() {
+        return maxGroups;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(LEVEL_FIELD.getPreferredName(), field);
+        builder.field(MAX_GROUPS_FIELD.getPreferredName(), maxGroups);
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(field, maxGroups);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof GroupLevel)) {
+            return false;
+        }
+        var other = (GroupLevel) obj;
+        return other.field.equals(field) &&
+            other.maxGroups == maxGroups;
+    }
+}
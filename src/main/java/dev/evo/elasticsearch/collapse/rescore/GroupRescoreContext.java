@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.rescore.RescoreContext;
+import org.elasticsearch.search.rescore.Rescorer;
+
+import java.util.List;
+
+/**
+ * Rescore context of the rescorers that group hits by a field value.
+ */
+abstract class GroupRescoreContext extends RescoreContext {
+    // Several fields form a composite group key
+    final List<IndexFieldData<?>> groupFields;
+    // Replaced by the search context's big arrays before the query phase,
+    // see CollapseSearchOperationListener
+    BigArrays bigArrays = BigArrays.NON_RECYCLING_INSTANCE;
+
+    GroupRescoreContext(int windowSize, Rescorer rescorer, List<IndexFieldData<?>> groupFields) {
+        super(windowSize, rescorer);
+        this.groupFields = groupFields;
+    }
+
+    void bigArrays(BigArrays bigArrays) {
+        this.bigArrays = bigArrays;
+    }
+}
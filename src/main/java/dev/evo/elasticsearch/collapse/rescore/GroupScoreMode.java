@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Defines how a score of a group is calculated from the scores of its documents.
+ */
+public enum GroupScoreMode implements Writeable {
+    MAX {
+        @Override
+        public float score(float maxScore, double scoreSum, int count) {
+            return maxScore;
+        }
+    },
+    SUM {
+        @Override
+        public float score(float maxScore, double scoreSum, int count) {
+            return (float) scoreSum;
+        }
+    },
+    AVG {
+        @Override
+        public float score(float maxScore, double scoreSum, int count) {
+            return (float) (scoreSum / count);
+        }
+    },
+    COUNT {
+        @Override
+        public float score(float maxScore, double scoreSum, int count) {
+            return count;
+        }
+    };
+
+    public abstract float score(float maxScore, double scoreSum, int count);
+
+    public static GroupScoreMode readFromStream(StreamInput in) throws IOException {
+        return in.readEnum(GroupScoreMode.class);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeEnum(this);
+    }
+
+    public static GroupScoreMode fromString(String scoreMode) {
+        try {
+            return valueOf(scoreMode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown score mode: [" + scoreMode + "]");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.fetch.FetchContext;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.fetch.FetchSubPhaseProcessor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes group keys and group statistics collected by the collapse rescorer to the coordinating node.
+ *
+ * Number of documents of a group is added to the top hit of the group as a field
+ * when it was requested. When group scores are combined from the document scores
+ * the coordinating node also needs the maximum scores and group sizes of every shard.
+ * Collapsed hits have no sort values so they are passed as sort values
+ * and cleared on the coordinating node, see CollapseRescoreFilter.
+ *
+ * The last sort value is a binary group key: raw bytes of the group value
+ * or length-prefixed bytes of every value of a composite key, {@code null} for hits without a group.
+ * The coordinating node groups hits by the keys without parsing formatted field values.
+ */
+public class GroupStatsFetchSubPhase implements FetchSubPhase {
+    public static final String GROUP_SIZE_FIELD = "_group_size";
+
+    private static final DocValueFormat[] GROUP_KEY_FORMATS = new DocValueFormat[] {
+        DocValueFormat.BINARY
+    };
+
+    private static final DocValueFormat[] GROUP_STATS_FORMATS = new DocValueFormat[] {
+        DocValueFormat.RAW, DocValueFormat.RAW, DocValueFormat.BINARY
+    };
+
+    @Override
+    public FetchSubPhaseProcessor getProcessor(FetchContext fetchContext) {
+        final var rescoreContexts = fetchContext.rescore();
+        if (rescoreContexts == null) {
+            return null;
+        }
+        for (var rescoreContext : rescoreContexts) {
+            if (rescoreContext instanceof CollapseRescorer.Context) {
+                final var collapseContext = (CollapseRescorer.Context) rescoreContext;
+                return new Processor(
+                    collapseContext.groupFields,
+                    collapseContext.groupStats,
+                    collapseContext.trackGroupSize,
+                    collapseContext.scoreMode != GroupScoreMode.MAX
+                );
+            }
+        }
+        return null;
+    }
+
+    private static class Processor implements FetchSubPhaseProcessor {
+        private final List<IndexFieldData<?>> groupFields;
+        private final SortedBinaryDocValues[] groupValues;
+        private final BytesRefBuilder groupKey = new BytesRefBuilder();
+        private final Map<Integer, CollapseRescorer.GroupStats> groupStats;
+        private final boolean trackGroupSize;
+        private final boolean passScores;
+        private int docBase;
+
+        Processor(
+            List<IndexFieldData<?>> groupFields,
+            Map<Integer, CollapseRescorer.GroupStats> groupStats,
+            boolean trackGroupSize,
+            boolean passScores
+        ) {
+            this.groupFields = groupFields;
+            this.groupValues = new SortedBinaryDocValues[groupFields.size()];
+            this.groupStats = groupStats;
+            this.trackGroupSize = trackGroupSize;
+            this.passScores = passScores;
+        }
+
+        @Override
+        public void setNextReader(LeafReaderContext readerContext) {
+            docBase = readerContext.docBase;
+            for (var i = 0; i < groupValues.length; i++) {
+                groupValues[i] = groupFields.get(i).load(readerContext).getBytesValues();
+            }
+        }
+
+        @Override
+        public void process(HitContext hitContext) throws IOException {
+            final var hit = hitContext.hit();
+            final var groupKey = groupKey(hitContext.docId());
+            final var stats = groupStats != null ? groupStats.get(docBase + hitContext.docId()) : null;
+            if (stats == null) {
+                hit.sortValues(new Object[] {groupKey}, GROUP_KEY_FORMATS);
+                return;
+            }
+            if (trackGroupSize && stats.size > 0) {
+                hit.setDocumentField(
+                    GROUP_SIZE_FIELD, new DocumentField(GROUP_SIZE_FIELD, List.of(stats.size))
+                );
+            }
+            if (passScores) {
+                hit.sortValues(new Object[] {stats.maxScore, stats.size, groupKey}, GROUP_STATS_FORMATS);
+            } else {
+                hit.sortValues(new Object[] {groupKey}, GROUP_KEY_FORMATS);
+            }
+        }
+
+        private BytesRef groupKey(int docId) throws IOException {
+            if (groupValues.length == 1) {
+                if (!groupValues[0].advanceExact(docId)) {
+                    return null;
+                }
+                return BytesRef.deepCopyOf(groupValues[0].nextValue());
+            }
+            // Values are length-prefixed so that keys of different values cannot match
+            groupKey.clear();
+            for (var values : groupValues) {
+                if (!values.advanceExact(docId)) {
+                    return null;
+                }
+                final var value = values.nextValue();
+                for (var shift = 24; shift >= 0; shift -= 8) {
+                    groupKey.append((byte) (value.length >>> shift));
+                }
+                groupKey.append(value);
+            }
+            return groupKey.toBytesRef();
+        }
+    }
+}
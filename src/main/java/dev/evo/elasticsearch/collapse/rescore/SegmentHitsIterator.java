@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse.rescore;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks through hits sorted by doc id switching index segments when needed
+ * and provides group values of the hits.
+ *
+ * <p>A group value of several fields is a composite key packed from fixed size per-field parts:
+ * global ordinals for fields with ordinals and longs for numeric fields.
+ * Only fields of other types contribute their length-prefixed bytes.
+ */
+class SegmentHitsIterator {
+    private final List<LeafReaderContext> readerContexts;
+    private final List<IndexFieldData<?>> groupFields;
+    private final List<KeyPart> keyParts;
+    private final BytesRefBuilder compositeKey;
+
+    private int currentReaderIx = -1;
+    private int currentReaderEndDoc = 0;
+    private LeafReaderContext currentReaderContext;
+    private SortedBinaryDocValues groupValues;
+    private int docId;
+
+    SegmentHitsIterator(IndexSearcher searcher, List<IndexFieldData<?>> groupFields) {
+        this.readerContexts = searcher.getIndexReader().leaves();
+        this.groupFields = groupFields;
+        this.currentReaderContext = readerContexts.get(0);
+        if (groupFields.size() == 1) {
+            this.keyParts = null;
+            this.compositeKey = null;
+            this.groupValues = groupFields.get(0).load(currentReaderContext).getBytesValues();
+        } else {
+            final var indexReader = searcher.getIndexReader();
+            final var topReader = indexReader instanceof DirectoryReader ?
+                (DirectoryReader) indexReader :
+                null;
+            this.keyParts = new ArrayList<>(groupFields.size());
+            for (var groupField : groupFields) {
+                keyParts.add(KeyPart.create(groupField, topReader));
+            }
+            this.compositeKey = new BytesRefBuilder();
+            loadKeyParts();
+        }
+    }
+
+    /**
+     * Positions the iterator on the hit. Hits must be passed in doc id order.
+     *
+     * @return {@code true} if the hit is located in another segment than the previous one
+     */
+    boolean advance(ScoreDoc hit) {
+        final var prevReaderContext = currentReaderContext;
+
+        // find segment that contains current document
+        while (hit.doc >= currentReaderEndDoc) {
+            currentReaderIx++;
+            currentReaderContext = readerContexts.get(currentReaderIx);
+            currentReaderEndDoc = currentReaderContext.docBase +
+                currentReaderContext.reader().maxDoc();
+        }
+
+        docId = hit.doc - currentReaderContext.docBase;
+        if (currentReaderContext != prevReaderContext) {
+            if (keyParts == null) {
+                groupValues = groupFields.get(0).load(currentReaderContext).getBytesValues();
+            } else {
+                loadKeyParts();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void loadKeyParts() {
+        for (var keyPart : keyParts) {
+            keyPart.load(currentReaderContext);
+        }
+    }
+
+    LeafReaderContext readerContext() {
+        return currentReaderContext;
+    }
+
+    /**
+     * Document id inside the current segment.
+     */
+    int docId() {
+        return docId;
+    }
+
+    /**
+     * Group value of the current hit or {@code null} when the hit has no value.
+     * A hit that misses a value of any of the composite key fields has no group value.
+     */
+    BytesRef groupValue() throws IOException {
+        if (keyParts == null) {
+            if (groupValues.advanceExact(docId)) {
+                return groupValues.nextValue();
+            }
+            return null;
+        }
+
+        compositeKey.clear();
+        for (var keyPart : keyParts) {
+            if (!keyPart.append(docId, compositeKey)) {
+                return null;
+            }
+        }
+        return compositeKey.get();
+    }
+
+    private abstract static class KeyPart {
+        static KeyPart create(IndexFieldData<?> fieldData, DirectoryReader topReader) {
+            if (fieldData instanceof IndexOrdinalsFieldData && topReader != null) {
+                return new OrdinalKeyPart(((IndexOrdinalsFieldData) fieldData).loadGlobal(topReader));
+            }
+            if (fieldData instanceof IndexNumericFieldData) {
+                final var numericFieldData = (IndexNumericFieldData) fieldData;
+                if (numericFieldData.getNumericType().isFloatingPoint()) {
+                    return new DoubleKeyPart(numericFieldData);
+                }
+                return new LongKeyPart(numericFieldData);
+            }
+            return new BytesKeyPart(fieldData);
+        }
+
+        abstract void load(LeafReaderContext readerContext);
+
+        /**
+         * Appends a value of the document to the key.
+         *
+         * @return {@code false} if the document has no value
+         */
+        abstract boolean append(int docId, BytesRefBuilder key) throws IOException;
+
+        static void appendLong(long value, BytesRefBuilder key) {
+            for (var shift = 56; shift >= 0; shift -= 8) {
+                key.append((byte) (value >>> shift));
+            }
+        }
+
+        static void appendInt(int value, BytesRefBuilder key) {
+            for (var shift = 24; shift >= 0; shift -= 8) {
+                key.append((byte) (value >>> shift));
+            }
+        }
+    }
+
+    private static class OrdinalKeyPart extends KeyPart {
+        private final IndexOrdinalsFieldData globalFieldData;
+        private SortedSetDocValues ords;
+
+        OrdinalKeyPart(IndexOrdinalsFieldData globalFieldData) {
+            this.globalFieldData = globalFieldData;
+        }
+
+        @Override
+        void load(LeafReaderContext readerContext) {
+            ords = globalFieldData.load(readerContext).getOrdinalsValues();
+        }
+
+        @Override
+        boolean append(int docId, BytesRefBuilder key) throws IOException {
+            if (!ords.advanceExact(docId)) {
+                return false;
+            }
+            appendLong(ords.nextOrd(), key);
+            return true;
+        }
+    }
+
+    private static class LongKeyPart extends KeyPart {
+        private final IndexNumericFieldData fieldData;
+        private SortedNumericDocValues values;
+
+        LongKeyPart(IndexNumericFieldData fieldData) {
+            this.fieldData = fieldData;
+        }
+
+        @Override
+        void load(LeafReaderContext readerContext) {
+            values = fieldData.load(readerContext).getLongValues();
+        }
+
+        @Override
+        boolean append(int docId, BytesRefBuilder key) throws IOException {
+            if (!values.advanceExact(docId)) {
+                return false;
+            }
+            appendLong(values.nextValue(), key);
+            return true;
+        }
+    }
+
+    private static class DoubleKeyPart extends KeyPart {
+        private final IndexNumericFieldData fieldData;
+        private SortedNumericDoubleValues values;
+
+        DoubleKeyPart(IndexNumericFieldData fieldData) {
+            this.fieldData = fieldData;
+        }
+
+        @Override
+        void load(LeafReaderContext readerContext) {
+            values = fieldData.load(readerContext).getDoubleValues();
+        }
+
+        @Override
+        boolean append(int docId, BytesRefBuilder key) throws IOException {
+            if (!values.advanceExact(docId)) {
+                return false;
+            }
+            appendLong(Double.doubleToLongBits(values.nextValue()), key);
+            return true;
+        }
+    }
+
+    private static class BytesKeyPart extends KeyPart {
+        private final IndexFieldData<?> fieldData;
+        private SortedBinaryDocValues values;
+
+        BytesKeyPart(IndexFieldData<?> fieldData) {
+            this.fieldData = fieldData;
+        }
+
+        @Override
+        void load(LeafReaderContext readerContext) {
+            values = fieldData.load(readerContext).getBytesValues();
+        }
+
+        @Override
+        boolean append(int docId, BytesRefBuilder key) throws IOException {
+            if (!values.advanceExact(docId)) {
+                return false;
+            }
+            final var value = values.nextValue();
+            // Length prefix keeps keys of different parts unambiguous
+            appendInt(value.length, key);
+            key.append(value);
+            return true;
+        }
+    }
+}
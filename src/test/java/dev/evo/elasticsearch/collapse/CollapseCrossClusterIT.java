@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package dev.evo.elasticsearch.collapse;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.FieldValueFactorFunctionBuilder;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.test.AbstractMultiClustersTestCase;
+
+import java.util.Collection;
+import java.util.List;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertOrderedSearchHits;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+
+public class CollapseCrossClusterIT extends AbstractMultiClustersTestCase {
+    private static final String REMOTE_CLUSTER = "cluster_a";
+    private static final String INDEX_NAME = "test_collapse";
+    private static final String COLLAPSE_FIELD = "model_id";
+
+    @Override
+    protected Collection<String> remoteClusterAlias() {
+        return List.of(REMOTE_CLUSTER);
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins(String clusterAlias) {
+        return List.of(CollapseRescorePlugin.class);
+    }
+
+    public void testMinimizeRoundtrips() throws Exception {
+        checkCrossClusterCollapse(true);
+    }
+
+    public void testWithoutMinimizeRoundtrips() throws Exception {
+        checkCrossClusterCollapse(false);
+    }
+
+    private void checkCrossClusterCollapse(boolean minimizeRoundtrips) {
+        populateIndex(
+            client(LOCAL_CLUSTER),
+            new Object[]{"l1", 1, 1.0F},
+            new Object[]{"l2", 2, 3.0F},
+            new Object[]{"l3", 3, 0.5F},
+            new Object[]{"l4", 2, 2.5F}
+        );
+        populateIndex(
+            client(REMOTE_CLUSTER),
+            new Object[]{"r1", 1, 2.0F},
+            new Object[]{"r2", 2, 1.5F},
+            new Object[]{"r3", 4, 0.7F},
+            new Object[]{"r4", 1, 1.8F}
+        );
+
+        final var searchRequest = new SearchRequest(INDEX_NAME, REMOTE_CLUSTER + ":" + INDEX_NAME)
+            .source(
+                new SearchSourceBuilder()
+                    .query(QueryBuilders.functionScoreQuery(new FieldValueFactorFunctionBuilder("rank")))
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            );
+        searchRequest.setCcsMinimizeRoundtrips(minimizeRoundtrips);
+        final var response = client(LOCAL_CLUSTER).search(searchRequest).actionGet();
+
+        assertSearchResponse(response);
+
+        // Groups are merged across the clusters so total hits are the number of groups
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "l2", "r1", "r3", "l3");
+    }
+
+    private void populateIndex(Client client, Object[]... docs) {
+        assertAcked(
+            client.admin().indices().prepareCreate(INDEX_NAME)
+                .addMapping("_doc", COLLAPSE_FIELD, "type=integer", "rank", "type=float")
+        );
+        final var bulk = client.prepareBulk().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (var doc : docs) {
+            bulk.add(
+                client.prepareIndex(INDEX_NAME, "_doc")
+                    .setId((String) doc[0])
+                    .setSource(COLLAPSE_FIELD, doc[1], "rank", doc[2])
+            );
+        }
+        assertFalse(bulk.get().hasFailures());
+    }
+}
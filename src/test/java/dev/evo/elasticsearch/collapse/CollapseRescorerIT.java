@@ -18,52 +18,125 @@
  */
 package dev.evo.elasticsearch.collapse;
 
+import dev.evo.elasticsearch.collapse.aggregations.GroupCountAggregationBuilder;
+import dev.evo.elasticsearch.collapse.aggregations.InternalGroupCount;
+import dev.evo.elasticsearch.collapse.rescore.CollapseRescorerBuilder;
+import dev.evo.elasticsearch.collapse.rescore.GroupBloomFilter;
+import dev.evo.elasticsearch.collapse.rescore.GroupDecayRescorerBuilder;
+import dev.evo.elasticsearch.collapse.rescore.GroupLeadersCache;
+import dev.evo.elasticsearch.collapse.rescore.GroupLevel;
+import dev.evo.elasticsearch.collapse.rescore.GroupScoreMode;
+
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchProgressListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchShard;
+import org.elasticsearch.action.search.SearchTask;
+import org.elasticsearch.action.search.TransportSearchAction;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.settings.MockSecureSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.functionscore.FieldValueFactorFunctionBuilder;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.range.Range;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.rescore.QueryRescorerBuilder;
 import org.elasticsearch.search.sort.ScriptSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortMode;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskId;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.test.NodeRoles;
 import org.elasticsearch.test.TestCluster;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
 
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matchers;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFailures;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertOrderedSearchHits;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHit;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
-import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertRequestBuilderThrows;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasScore;
 
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 
 
 @ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE, numDataNodes = 2)
 public class CollapseRescorerIT extends ESIntegTestCase {
     private static final String INDEX_NAME = "test_collapse";
     private static final String COLLAPSE_FIELD = "model_id";
+    private static final String COMPANY_FIELD = "company_id";
+    private static final String COLOR_FIELD = "color";
 
     @Override
     protected TestCluster buildTestCluster(Scope scope, long seed) throws IOException {
@@ -74,121 +147,1906 @@ public class CollapseRescorerIT extends ESIntegTestCase {
         return testCluster;
     }
 
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+        // Transport client must be able to read aggregation results of the plugin
+        return List.of(CollapseRescorePlugin.class);
+    }
+
     public void testEmptyIndex() throws IOException {
         createTestIndex(1);
 
-        var queryBuilder = QueryBuilders.matchAllQuery();
-        var response = client().prepareSearch(INDEX_NAME)
+        var queryBuilder = QueryBuilders.matchAllQuery();
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(queryBuilder)
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            )
+            .get();
+
+        assertSearchResponse(response);
+    }
+
+    public void testUnknownField() throws IOException {
+        createTestIndex(1);
+
+        var request = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder("missing_field")))
+            );
+
+        assertFailures(
+            request,
+            RestStatus.BAD_REQUEST,
+            Matchers.containsString("no mapping found for `missing_field`")
+        );
+    }
+
+    public void testEmptySearchSource() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 7);
+    }
+
+    public void testDefaultCollapsing() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+
+        // Group values are fetched only for collapsing
+        for (var hit : response.getHits()) {
+            assertThat(hit, hasFields());
+        }
+
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                    .docValueField(COLLAPSE_FIELD)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+
+        assertSearchHit(
+            response, 1,
+            hasFields(
+                new DocumentField("model_id", List.of())
+            )
+        );
+        assertSearchHit(
+            response, 2,
+            hasFields(
+                new DocumentField("model_id", List.of(1L))
+            )
+        );
+        assertSearchHit(
+            response, 3,
+            hasFields(
+                new DocumentField("model_id", List.of())
+            )
+        );
+        assertSearchHit(
+            response, 4,
+            hasFields(
+                new DocumentField("model_id", List.of(2L))
+            )
+        );
+    }
+
+    public void testManyGroups() throws Exception {
+        createTestIndex(2);
+        final var numGroups = 200;
+        final var bulk = client().prepareBulk().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (var group = 0; group < numGroups; group++) {
+            for (var i = 0; i < 3; i++) {
+                bulk.add(
+                    client().prepareIndex(INDEX_NAME, "_doc")
+                        .setId(group + "-" + i)
+                        .setSource(
+                            COLLAPSE_FIELD, group,
+                            "rank", 1.0F + group * 0.01F + i * 0.001F
+                        )
+                );
+            }
+        }
+        assertNoFailures(bulk.get());
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD).windowSize(1000)))
+                    .size(numGroups + 10)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // The group table grows far beyond its initial pages
+        assertHitCount(response, numGroups);
+        final var expectedIds = new String[numGroups];
+        for (var group = 0; group < numGroups; group++) {
+            expectedIds[group] = (numGroups - 1 - group) + "-2";
+        }
+        assertOrderedSearchHits(response, expectedIds);
+
+        // Pages of the group table are given back to the request circuit breaker
+        assertBusy(() -> {
+            final var nodesStats = client().admin().cluster().prepareNodesStats()
+                .addMetric(NodesStatsRequest.Metric.BREAKER.metricName())
+                .get();
+            for (var nodeStats : nodesStats.getNodes()) {
+                assertThat(
+                    nodeStats.getBreaker().getStats(CircuitBreaker.REQUEST).getEstimated(),
+                    equalTo(0L)
+                );
+            }
+        });
+    }
+
+    public void testCollapsingSize() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4");
+    }
+
+    public void testDisabledPagination() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .pagination(false)
+                    ))
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+    }
+
+    public void testAdaptiveWindow() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .initialWindowSize(2)
+                            .windowGrowthFactor(2)
+                    ))
+                    .size(4)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+    }
+
+    public void testAdaptiveWindowFilledPage() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .initialWindowSize(2)
+                    ))
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // The first window is enough to fill the page
+        assertHitCount(response, 2);
+        assertOrderedSearchHits(response, "5", "4");
+    }
+
+    public void testCollapseFirst() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        // Boost the least relevant document of the first group
+        final var boostRescorer = new QueryRescorerBuilder(
+            QueryBuilders.constantScoreQuery(QueryBuilders.idsQuery().addIds("1")).boost(10.0F)
+        );
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .addRescorer(boostRescorer)
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "1", "5", "3", "2");
+
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .addRescorer(boostRescorer)
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .collapseFirst(true)
+                    ))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // The boosted document was collapsed before rescoring
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+    }
+
+    public void testGroupDecay() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .addRescorer(new GroupDecayRescorerBuilder(COLLAPSE_FIELD).decay(0.5F))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 7);
+        assertOrderedSearchHits(response, "5", "4", "3", "2", "7", "6", "1");
+        assertSearchHit(response, 5, hasScore(1.39F * 0.5F));
+        assertSearchHit(response, 7, hasScore(1.1F * 0.25F));
+    }
+
+    public void testGroupDecayExplain() throws IOException {
+        // Documents of the first group are split between shards: 1 and 7 against 4
+        createAndPopulateTestIndex(2);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .addRescorer(new GroupDecayRescorerBuilder(COLLAPSE_FIELD).decay(0.5F))
+                    .explain(true)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 7);
+        final var hits = Arrays.stream(response.getHits().getHits())
+            .collect(Collectors.toMap(SearchHit::getId, hit -> hit));
+
+        // Group positions are tracked per shard
+        var explanation = hits.get("1").getExplanation();
+        assertThat(explanation.getValue().floatValue(), equalTo(1.1F * 0.5F));
+        assertThat(explanation.getDetails()[1].getValue().floatValue(), equalTo(0.5F));
+        assertThat(
+            explanation.getDetails()[1].getDescription(),
+            equalTo("group decay, decay [0.5] ^ position in group [1]")
+        );
+
+        explanation = hits.get("4").getExplanation();
+        assertThat(explanation.getValue().floatValue(), equalTo(1.4F));
+        assertThat(
+            explanation.getDetails()[1].getDescription(),
+            equalTo("group decay, decay [0.5] ^ position in group [0]")
+        );
+
+        // Hits without a group are not deboosted
+        explanation = hits.get("5").getExplanation();
+        assertThat(explanation.getValue().floatValue(), equalTo(1.5F));
+        assertThat(explanation.getDescription(), not(equalTo("product of:")));
+    }
+
+    public void testMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        // Ensure docs fell into different shards
+        var response = client().prepareSearch(INDEX_NAME)
+            .setQuery(QueryBuilders.idsQuery().addIds("4"))
+            .setPreference("_shards:1")
+            .get();
+        assertSearchResponse(response);
+        assertHitCount(response, 1);
+
+        response = client().prepareSearch(INDEX_NAME)
+            .setQuery(QueryBuilders.idsQuery().addIds("7"))
+            .setPreference("_shards:0")
+            .get();
+        assertSearchResponse(response);
+        assertHitCount(response, 1);
+
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4");
+    }
+
+    public void testMergeByGroupKey() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        // Doc 4 is on the shard 1, docs 2 and 7 are on the shard 0
+        checkMergeByGroupKey(List.of(COLLAPSE_FIELD), "5", "4", "3", "2");
+        // Company 1 with red color is a composite key of an integer and a keyword
+        checkMergeByGroupKey(List.of(COMPANY_FIELD, COLOR_FIELD), "5", "4", "7", "3");
+    }
+
+    private void checkMergeByGroupKey(List<String> groupFields, String... expectedIds) {
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(groupFields)))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, expectedIds.length);
+        assertOrderedSearchHits(response, expectedIds);
+        // Groups are merged by binary keys so group fields are not fetched
+        for (var hit : response.getHits()) {
+            assertThat(hit.getFields().keySet(), empty());
+        }
+
+        final var source = new SearchSourceBuilder()
+            .query(rankQuery())
+            .ext(List.of(new CollapseSearchExtBuilder(groupFields)));
+        for (var groupField : groupFields) {
+            source.docValueField(groupField);
+        }
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(source)
+            .get();
+
+        assertSearchResponse(response);
+
+        assertOrderedSearchHits(response, expectedIds);
+        // Requested group fields are returned, doc 4 has all of them
+        final var hit = response.getHits().getAt(1);
+        for (var groupField : groupFields) {
+            assertThat(hit.field(groupField), not(nullValue()));
+        }
+    }
+
+    public void testAutoShardSizing() throws IOException {
+        // Documents 1, 2, 3, 5, 6 and 7 are routed to the first shard, document 4 to the second one
+        createAndPopulateTestIndex(2);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .autoShardSizing(true)
+                            .oversampling(1.0F)
+                    ))
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // Every shard returns only 2 top groups and the coordinator keeps 2 groups of every shard:
+        // the first shard returns documents 5 and 7, the second one returns document 4
+        assertHitCount(response, 2);
+        assertOrderedSearchHits(response, "5", "4");
+
+        // The same page with the whole window on every shard
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4");
+
+        // A small page is not split between shards, every shard returns the whole page
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .autoShardSizing(true)
+                            .oversampling(1.0F)
+                    ))
+                    .from(2)
+                    .size(2)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "3", "2");
+
+        // Configured shard size caps the derived one
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .autoShardSizing(true)
+                            .oversampling(1.0F)
+                            .shardSize(1)
+                    ))
+                    .size(4)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 2);
+        assertOrderedSearchHits(response, "5", "4");
+    }
+
+    public void testMaxPerGroup() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkMaxPerGroup();
+    }
+
+    public void testMaxPerGroupMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkMaxPerGroup();
+    }
+
+    public void testMaxPerGroupFieldSort() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .maxPerGroup(2)
+                            .addSort(SortBuilders.fieldSort("price"))
+                    ))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 6);
+        assertOrderedSearchHits(response, "5", "1", "7", "3", "6", "2");
+        assertSearchHit(response, 2, hasScore(1.4F));
+        assertSearchHit(response, 3, hasScore(1.4F));
+    }
+
+    public void testTrackGroupSize() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkTrackGroupSize();
+    }
+
+    public void testTrackGroupSizeMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkTrackGroupSize();
+    }
+
+    public void testScoreModeSum() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkScoreMode(GroupScoreMode.SUM, List.of("4", "2", "5", "3"), 1.4 + 1.39 + 1.1);
+    }
+
+    public void testScoreModeSumMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkScoreMode(GroupScoreMode.SUM, List.of("4", "2", "5", "3"), 1.4 + 1.39 + 1.1);
+    }
+
+    public void testScoreModeAvg() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkScoreMode(GroupScoreMode.AVG, List.of("5", "3", "4", "2"), 1.5);
+    }
+
+    public void testScoreModeAvgMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkScoreMode(GroupScoreMode.AVG, List.of("5", "3", "4", "2"), 1.5);
+
+        final var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .scoreMode(GroupScoreMode.AVG)
+                    ))
+            )
+            .get();
+        assertThat(
+            (double) response.getHits().getAt(2).getScore(),
+            closeTo((1.4 + 1.39 + 1.1) / 3, 1e-5)
+        );
+    }
+
+    public void testScoreModeCount() throws IOException {
+        createAndPopulateTestIndex(2);
+        final var response = checkScoreMode(GroupScoreMode.COUNT, List.of("4", "2"), 3.0);
+        assertThat((double) response.getHits().getAt(1).getScore(), closeTo(2.0, 1e-5));
+    }
+
+    public void testTrackTotalGroups() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .windowSize(3)
+                            .trackTotalGroups(true)
+                    ))
+                    .size(1)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // 2 groups and 2 documents without a group
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5");
+        assertThat(response.getAggregations(), nullValue());
+
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .aggregation(AggregationBuilders.max("max_rank").field("rank"))
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .windowSize(3)
+                            .trackTotalGroups(true)
+                    ))
+                    .size(1)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertThat(response.getAggregations().asMap().keySet(), contains("max_rank"));
+    }
+
+    public void testConcurrentPages() throws Exception {
+        createAndPopulateTestIndex(2);
+        final var node = startSingleFlightNode();
+
+        final var expectedPages = List.of(List.of("5", "4"), List.of("3", "2"), List.of());
+        final var responses = new ArrayList<ActionFuture<SearchResponse>>();
+        for (var i = 0; i < 12; i++) {
+            final var page = i % expectedPages.size();
+            responses.add(
+                client(node).prepareSearch(INDEX_NAME)
+                    .setSource(
+                        new SearchSourceBuilder()
+                            .query(rankQuery())
+                            .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                            .from(page * 2)
+                            .size(2)
+                    )
+                    .execute()
+            );
+        }
+        for (var i = 0; i < responses.size(); i++) {
+            final var response = responses.get(i).get();
+            assertSearchResponse(response);
+            assertHitCount(response, 4);
+            assertOrderedSearchHits(
+                response, expectedPages.get(i % expectedPages.size()).toArray(new String[0])
+            );
+        }
+    }
+
+    public void testSingleFlightIdentity() throws Exception {
+        createAndPopulateTestIndex(2);
+        final var node = startSingleFlightNode();
+        final var singleFlight = internalCluster().getInstance(CollapseSingleFlight.class, node);
+        final var executed = stat(singleFlight, "executed_total");
+        final var joined = stat(singleFlight, "joined_total");
+
+        // Requests of different users are never shared
+        final var responses = new ArrayList<ActionFuture<SearchResponse>>();
+        for (var i = 0; i < 8; i++) {
+            responses.add(
+                client(node)
+                    .filterWithHeader(Map.of("Authorization", "Basic user" + i))
+                    .prepareSearch(INDEX_NAME)
+                    .setSource(
+                        new SearchSourceBuilder()
+                            .query(rankQuery())
+                            .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                            .size(2)
+                    )
+                    .execute()
+            );
+        }
+        for (var response : responses) {
+            assertSearchResponse(response.get());
+            assertOrderedSearchHits(response.get(), "5", "4");
+        }
+        assertThat(stat(singleFlight, "executed_total"), equalTo(executed + 8));
+        assertThat(stat(singleFlight, "joined_total"), equalTo(joined));
+
+        // Requests with different group sorts are different requests
+        final var byPrice = client(node).prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD).addSort(SortBuilders.fieldSort("price"))
+                    ))
+            )
+            .execute();
+        final var byRank = client(node).prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            )
+            .execute();
+        assertOrderedSearchHits(byPrice.get(), "5", "1", "3", "6");
+        assertOrderedSearchHits(byRank.get(), "5", "4", "3", "2");
+
+        // Request options that can change the result are part of the key
+        final var executedBefore = stat(singleFlight, "executed_total");
+        final var joinedBefore = stat(singleFlight, "joined_total");
+        final var withOptions = new ArrayList<ActionFuture<SearchResponse>>();
+        for (var i = 0; i < 4; i++) {
+            final var search = client(node).prepareSearch(INDEX_NAME)
+                .setSource(
+                    new SearchSourceBuilder()
+                        .query(rankQuery())
+                        .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                );
+            switch (i) {
+                case 1:
+                    search.setAllowPartialSearchResults(false);
+                    break;
+                case 2:
+                    search.setRequestCache(false);
+                    break;
+                case 3:
+                    search.setBatchedReduceSize(2);
+                    break;
+                default:
+                    break;
+            }
+            withOptions.add(search.execute());
+        }
+        for (var response : withOptions) {
+            assertOrderedSearchHits(response.get(), "5", "4", "3", "2");
+        }
+        assertThat(stat(singleFlight, "executed_total"), equalTo(executedBefore + 4));
+        assertThat(stat(singleFlight, "joined_total"), equalTo(joinedBefore));
+    }
+
+    public void testSingleFlightLeaderCancelled() throws Exception {
+        createAndPopulateTestIndex(2);
+        final var node = internalCluster().startCoordinatingOnlyNode(
+            Settings.builder()
+                .put(CollapseSingleFlight.COLLAPSE_SINGLE_FLIGHT_ENABLED.getKey(), true)
+                .put(CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_COST.getKey(), 1000)
+                .build()
+        );
+        final var singleFlight = internalCluster().getInstance(CollapseSingleFlight.class, node);
+        final var admissionControl = internalCluster().getInstance(CollapseAdmissionControl.class, node);
+        final var searchAction = internalCluster().getInstance(TransportSearchAction.class, node);
+        final var taskManager = internalCluster().getInstance(TransportService.class, node).getTaskManager();
+        final var threadContext = internalCluster().getInstance(ThreadPool.class, node).getThreadContext();
+        final var joined = stat(singleFlight, "joined_total");
+        final var reexecuted = stat(singleFlight, "reexecuted_total");
+        final Supplier<SearchRequest> requestSupplier = () -> new SearchRequest(INDEX_NAME)
+            .source(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            );
+
+        // Take the whole limit so leaders wait in the queue
+        var blocker = new PlainActionFuture<Releasable>();
+        admissionControl.acquire(1000, null, blocker);
+        var permit = blocker.actionGet();
+
+        var leaderRequest = requestSupplier.get();
+        var leaderTask = (CancellableTask) taskManager.register("transport", SearchAction.NAME, leaderRequest);
+        var followerRequest = requestSupplier.get();
+        var followerTask = taskManager.register("transport", SearchAction.NAME, followerRequest);
+        try {
+            final var leaderResponse = searchWithUser(searchAction, threadContext, leaderTask, leaderRequest, "leader");
+            assertBusy(() -> assertThat(admissionStats(admissionControl).get("queue_size"), equalTo(1)));
+            final var followerResponse = searchWithUser(
+                searchAction, threadContext, followerTask, followerRequest, "follower"
+            );
+            assertThat(stat(singleFlight, "joined_total"), equalTo(joined + 1));
+
+            // The follower shares the result but not the context of the leader
+            permit.close();
+            assertOrderedSearchHits(leaderResponse.get(), "5", "4", "3", "2");
+            assertOrderedSearchHits(followerResponse.get(), "5", "4", "3", "2");
+        } finally {
+            taskManager.unregister(leaderTask);
+            taskManager.unregister(followerTask);
+        }
+
+        blocker = new PlainActionFuture<>();
+        admissionControl.acquire(1000, null, blocker);
+        permit = blocker.actionGet();
+
+        leaderRequest = requestSupplier.get();
+        leaderTask = (CancellableTask) taskManager.register("transport", SearchAction.NAME, leaderRequest);
+        followerRequest = requestSupplier.get();
+        followerTask = taskManager.register("transport", SearchAction.NAME, followerRequest);
+        try {
+            final var leaderResponse = searchWithUser(searchAction, threadContext, leaderTask, leaderRequest, "leader");
+            assertBusy(() -> assertThat(admissionStats(admissionControl).get("queue_size"), equalTo(1)));
+            final var followerResponse = searchWithUser(
+                searchAction, threadContext, followerTask, followerRequest, "follower"
+            );
+            assertThat(stat(singleFlight, "joined_total"), equalTo(joined + 2));
+
+            // The follower does not inherit cancellation of the leader and is executed again
+            taskManager.cancel(leaderTask, "test", () -> {});
+            expectThrows(TaskCancelledException.class, leaderResponse::actionGet);
+            assertBusy(() -> assertThat(admissionStats(admissionControl).get("queue_size"), equalTo(1)));
+            assertThat(stat(singleFlight, "reexecuted_total"), equalTo(reexecuted + 1));
+            assertThat(followerResponse.isDone(), equalTo(false));
+
+            permit.close();
+            final var response = followerResponse.get();
+            assertSearchResponse(response);
+            assertOrderedSearchHits(response, "5", "4", "3", "2");
+        } finally {
+            taskManager.unregister(leaderTask);
+            taskManager.unregister(followerTask);
+        }
+    }
+
+    /**
+     * Executes the search in a context of the user and checks that the response
+     * is received in the same context.
+     */
+    private static PlainActionFuture<SearchResponse> searchWithUser(
+        TransportSearchAction searchAction,
+        ThreadContext threadContext,
+        Task task,
+        SearchRequest request,
+        String user
+    ) {
+        final var future = new PlainActionFuture<SearchResponse>();
+        final var storedContext = threadContext.stashContext();
+        threadContext.putTransient("collapse_test_user", user);
+        threadContext.addResponseHeader("X-Collapse-Test-User", user);
+        searchAction.execute(
+            task,
+            request,
+            ActionListener.wrap(
+                response -> {
+                    final String contextUser = threadContext.getTransient("collapse_test_user");
+                    final var responseUsers = threadContext.getResponseHeaders().get("X-Collapse-Test-User");
+                    if (!user.equals(contextUser) || !List.of(user).equals(responseUsers)) {
+                        future.onFailure(new IllegalStateException(
+                            "response for " + user + " is received in the context of " + contextUser +
+                                " with response headers of " + responseUsers
+                        ));
+                        return;
+                    }
+                    future.onResponse(response);
+                },
+                future::onFailure
+            )
+        );
+        storedContext.restore();
+        return future;
+    }
+
+    private String startSingleFlightNode() {
+        // Other nodes keep single flight disabled as it is by default
+        return internalCluster().startCoordinatingOnlyNode(
+            Settings.builder()
+                .put(CollapseSingleFlight.COLLAPSE_SINGLE_FLIGHT_ENABLED.getKey(), true)
+                .build()
+        );
+    }
+
+    public void testAdmissionControl() throws Exception {
+        createAndPopulateTestIndex(2);
+        final var node = internalCluster().startCoordinatingOnlyNode(
+            Settings.builder()
+                .put(CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_COST.getKey(), 1000)
+                .put(CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_QUEUE_SIZE.getKey(), 1)
+                .build()
+        );
+        final var admissionControl = internalCluster().getInstance(CollapseAdmissionControl.class, node);
+
+        // Take the whole limit so the next request has to wait
+        final var blocker = new PlainActionFuture<Releasable>();
+        admissionControl.acquire(1000, null, blocker);
+        final var permit = blocker.actionGet();
+
+        final var queuedResponse = client(node).prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            )
+            .execute();
+        assertBusy(() -> assertThat(admissionStats(admissionControl).get("queue_size"), equalTo(1)));
+
+        // The queue is full
+        final var e = expectThrows(
+            EsRejectedExecutionException.class,
+            () -> client(node).prepareSearch(INDEX_NAME)
+                .setSource(
+                    new SearchSourceBuilder()
+                        .query(QueryBuilders.matchAllQuery())
+                        .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                )
+                .get()
+        );
+        assertThat(ExceptionsHelper.status(e), equalTo(RestStatus.TOO_MANY_REQUESTS));
+        assertThat(e.getMessage(), Matchers.containsString("rejected collapse request"));
+
+        permit.close();
+        final var response = queuedResponse.get();
+        assertSearchResponse(response);
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+
+        assertBusy(() -> {
+            final var stats = admissionStats(admissionControl);
+            assertThat(stats.get("running_cost"), equalTo(0));
+            assertThat(stats.get("running_requests"), equalTo(0));
+            assertThat(stats.get("queue_size"), equalTo(0));
+            assertThat(stats.get("admitted_total"), equalTo(2));
+            assertThat(stats.get("queued_total"), equalTo(1));
+            assertThat(stats.get("rejected_total"), equalTo(1));
+        });
+    }
+
+    public void testAdmissionControlThreadContext() throws Exception {
+        final var node = internalCluster().startCoordinatingOnlyNode(
+            Settings.builder()
+                .put(CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_COST.getKey(), 1000)
+                .build()
+        );
+        final var admissionControl = internalCluster().getInstance(CollapseAdmissionControl.class, node);
+        final var threadContext = internalCluster().getInstance(ThreadPool.class, node).getThreadContext();
+
+        final var blocker = new PlainActionFuture<Releasable>();
+        admissionControl.acquire(1000, null, blocker);
+        final var permit = blocker.actionGet();
+
+        final var queuedUser = new PlainActionFuture<String>();
+        final var queuedContext = threadContext.stashContext();
+        threadContext.putHeader("collapse_test_user", "queued");
+        admissionControl.acquire(
+            1000,
+            null,
+            ActionListener.wrap(
+                queuedPermit -> {
+                    queuedUser.onResponse(threadContext.getHeader("collapse_test_user"));
+                    queuedPermit.close();
+                },
+                queuedUser::onFailure
+            )
+        );
+        queuedContext.restore();
+
+        // The queued request must not continue with the context of the request that released the limit
+        final var releasingContext = threadContext.stashContext();
+        threadContext.putHeader("collapse_test_user", "releasing");
+        permit.close();
+        releasingContext.restore();
+
+        assertThat(queuedUser.get(), equalTo("queued"));
+    }
+
+    public void testAdmissionControlQueueTimeoutAndCancellation() throws Exception {
+        final var node = internalCluster().startCoordinatingOnlyNode(
+            Settings.builder()
+                .put(CollapseAdmissionControl.COLLAPSE_ADMISSION_MAX_COST.getKey(), 1000)
+                .put(CollapseAdmissionControl.COLLAPSE_ADMISSION_QUEUE_TIMEOUT.getKey(), "3s")
+                .build()
+        );
+        final var admissionControl = internalCluster().getInstance(CollapseAdmissionControl.class, node);
+        final var taskManager = internalCluster().getInstance(TransportService.class, node).getTaskManager();
+
+        final var blocker = new PlainActionFuture<Releasable>();
+        admissionControl.acquire(1000, null, blocker);
+        final var permit = blocker.actionGet();
+
+        final var task = (CancellableTask) taskManager.register("transport", SearchAction.NAME, new SearchRequest());
+        try {
+            final var cancelled = new PlainActionFuture<Releasable>();
+            admissionControl.acquire(1000, task, cancelled);
+            taskManager.cancel(task, "test", () -> {});
+            expectThrows(TaskCancelledException.class, cancelled::actionGet);
+        } finally {
+            taskManager.unregister(task);
+        }
+
+        final var timedOut = new PlainActionFuture<Releasable>();
+        admissionControl.acquire(1000, null, timedOut);
+        final var e = expectThrows(EsRejectedExecutionException.class, timedOut::actionGet);
+        assertThat(e.getMessage(), Matchers.containsString("queued for longer than [3s]"));
+
+        permit.close();
+        final var stats = admissionStats(admissionControl);
+        assertThat(stats.get("queue_size"), equalTo(0));
+        assertThat(stats.get("running_cost"), equalTo(0));
+        assertThat(stats.get("cancelled_total"), equalTo(1));
+        assertThat(stats.get("timed_out_total"), equalTo(1));
+    }
+
+    private static Map<String, Object> admissionStats(CollapseAdmissionControl admissionControl) {
+        return XContentHelper.convertToMap(
+            new BytesArray(Strings.toString(admissionControl)), false, XContentType.JSON
+        ).v2();
+    }
+
+    public void testSearchActionWithTask() throws Exception {
+        createAndPopulateTestIndex(2);
+        // Async search executes the search action with its own task,
+        // that must still run action filters and collapse the hits
+        final var node = internalCluster().getNodeNames()[0];
+        final var searchAction = internalCluster().getInstance(TransportSearchAction.class, node);
+        final var taskManager = internalCluster().getInstance(TransportService.class, node).getTaskManager();
+        final var searchRequest = new SearchRequest(INDEX_NAME)
+            .source(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            );
+        final var task = taskManager.register("transport", SearchAction.NAME, searchRequest);
+        try {
+            final var future = new PlainActionFuture<SearchResponse>();
+            searchAction.execute(task, searchRequest, future);
+            final var response = future.get();
+
+            assertSearchResponse(response);
+
+            assertHitCount(response, 4);
+            assertOrderedSearchHits(response, "5", "4", "3", "2");
+        } finally {
+            taskManager.unregister(task);
+        }
+    }
+
+    public void testSearchActionWithProgressListener() throws Exception {
+        createAndPopulateTestIndex(3);
+        // Async search reports partial results from the progress listener of its search task
+        final var node = internalCluster().getNodeNames()[0];
+        final var searchAction = internalCluster().getInstance(TransportSearchAction.class, node);
+        final var taskManager = internalCluster().getInstance(TransportService.class, node).getTaskManager();
+        final var searchRequest = new SearchRequest(INDEX_NAME)
+            .source(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD).trackTotalGroups(true)))
+            );
+        searchRequest.setBatchedReduceSize(2);
+        final var partialReduces = new CopyOnWriteArrayList<Tuple<Long, Set<String>>>();
+        final var finalReduces = new CopyOnWriteArrayList<Tuple<Long, Set<String>>>();
+        final var task = (SearchTask) taskManager.register("transport", SearchAction.NAME, searchRequest);
+        task.setProgressListener(new SearchProgressListener() {
+            @Override
+            protected void onPartialReduce(
+                List<SearchShard> shards, TotalHits totalHits, InternalAggregations aggs, int reducePhase
+            ) {
+                partialReduces.add(Tuple.tuple(totalHits.value, aggs.asMap().keySet()));
+            }
+
+            @Override
+            protected void onFinalReduce(
+                List<SearchShard> shards, TotalHits totalHits, InternalAggregations aggs, int reducePhase
+            ) {
+                finalReduces.add(Tuple.tuple(totalHits.value, aggs.asMap().keySet()));
+            }
+        });
+        try {
+            final var future = new PlainActionFuture<SearchResponse>();
+            searchAction.execute(task, searchRequest, future);
+            final var response = future.get();
+
+            assertSearchResponse(response);
+
+            // The response has total groups and no injected aggregations
+            assertHitCount(response, 4);
+            assertOrderedSearchHits(response, "5", "4", "3", "2");
+            assertThat(response.getAggregations(), nullValue());
+        } finally {
+            taskManager.unregister(task);
+        }
+
+        // Reduces before the hits are collapsed count documents
+        // and contain the aggregations injected for tracking total groups
+        final var injectedAggs = Set.of("_collapse_total_groups", "_collapse_missing_groups");
+        assertThat(partialReduces, not(empty()));
+        for (var partialReduce : partialReduces) {
+            assertThat(partialReduce.v1(), lessThanOrEqualTo(7L));
+            assertThat(partialReduce.v2(), equalTo(injectedAggs));
+        }
+        assertThat(finalReduces, hasSize(1));
+        assertThat(finalReduces.get(0).v1(), equalTo(7L));
+        assertThat(finalReduces.get(0).v2(), equalTo(injectedAggs));
+    }
+
+    public void testRetryParentTask() throws Exception {
+        createAndPopulateTestIndex(1);
+        final var node = internalCluster().getNodeNames()[0];
+        final var searchAction = internalCluster().getInstance(TransportSearchAction.class, node);
+        final var transportService = internalCluster().getInstance(TransportService.class, node);
+        final var taskManager = transportService.getTaskManager();
+
+        // The first window has only 2 groups, so the page is filled by a retry
+        final Supplier<SearchRequest> requestSupplier = () -> new SearchRequest(INDEX_NAME)
+            .source(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .initialWindowSize(2)
+                            .windowGrowthFactor(2)
+                    ))
+                    .size(4)
+            );
+        var searchRequest = requestSupplier.get();
+        var task = (CancellableTask) taskManager.register("transport", SearchAction.NAME, searchRequest);
+        try {
+            final var future = new PlainActionFuture<SearchResponse>();
+            searchAction.execute(task, searchRequest, future);
+            final var response = future.get();
+
+            assertSearchResponse(response);
+
+            assertHitCount(response, 4);
+            assertOrderedSearchHits(response, "5", "4", "3", "2");
+            // Retries are executed as children of the original task
+            assertThat(
+                searchRequest.getParentTask(),
+                equalTo(new TaskId(transportService.getLocalNode().getId(), task.getId()))
+            );
+        } finally {
+            taskManager.unregister(task);
+        }
+
+        searchRequest = requestSupplier.get();
+        task = (CancellableTask) taskManager.register("transport", SearchAction.NAME, searchRequest);
+        try {
+            taskManager.cancel(task, "test", () -> {});
+            final var future = new PlainActionFuture<SearchResponse>();
+            searchAction.execute(task, searchRequest, future);
+
+            // A cancelled request is not retried
+            final var e = expectThrows(TaskCancelledException.class, future::actionGet);
+            assertThat(e.getMessage(), containsString("cancelled before a retry"));
+            assertThat(searchRequest.getParentTask().isSet(), equalTo(false));
+        } finally {
+            taskManager.unregister(task);
+        }
+    }
+
+    public void testMultiSearch() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        var response = client().prepareMultiSearch()
+            .add(
+                client().prepareSearch(INDEX_NAME)
+                    .setSource(
+                        new SearchSourceBuilder()
+                            .query(rankQuery())
+                            .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                    )
+            )
+            .add(
+                client().prepareSearch(INDEX_NAME)
+                    .setSource(
+                        new SearchSourceBuilder()
+                            .query(rankQuery())
+                            .ext(List.of(
+                                new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                                    .addSort(SortBuilders.fieldSort("price"))
+                            ))
+                            .size(2)
+                    )
+            )
+            .add(
+                client().prepareSearch(INDEX_NAME)
+                    .setSource(
+                        new SearchSourceBuilder()
+                            .query(rankQuery())
+                    )
+            )
+            .get();
+
+        final var items = response.getResponses();
+        assertThat(items.length, equalTo(3));
+        for (var item : items) {
+            assertThat(item.getFailure(), nullValue());
+        }
+        assertHitCount(items[0].getResponse(), 4);
+        assertOrderedSearchHits(items[0].getResponse(), "5", "4", "3", "2");
+        assertHitCount(items[1].getResponse(), 4);
+        assertOrderedSearchHits(items[1].getResponse(), "5", "1");
+        // Requests without collapsing are not affected
+        assertHitCount(items[2].getResponse(), 7);
+    }
+
+    public void testRemoteClusterCollapse() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        // A request that a remote cluster receives from the coordinator of a cross-cluster search,
+        // it has already been prepared for collapsing
+        var source = new SearchSourceBuilder()
+            .query(rankQuery())
+            .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+            .docValueField(COLLAPSE_FIELD)
+            .addRescorer(new CollapseRescorerBuilder(COLLAPSE_FIELD).windowSize(100))
+            .size(100);
+        var response = client()
+            .filterWithHeader(Map.of(CollapseRescoreFilter.REMOTE_COLLAPSE_HEADER, "true"))
+            .search(new SearchRequest(INDEX_NAME).source(source))
+            .actionGet();
+
+        assertSearchResponse(response);
+
+        // Only group tops are sent back, total hits are merged by the local coordinator
+        assertHitCount(response, 7);
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+
+        // Without the mark a prepared request is executed as is,
+        // so group tops of both shards are returned without merging
+        response = client().search(new SearchRequest(INDEX_NAME).source(source)).actionGet();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 7);
+        assertThat(response.getHits().getHits().length, equalTo(5));
+    }
+
+    public void testGroupCount() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkGroupCount(COLLAPSE_FIELD);
+        checkGroupCount(COLLAPSE_FIELD + ".keyword");
+    }
+
+    public void testGroupCountValuesSource() throws IOException {
+        createAndPopulateTestIndex(2);
+
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .aggregation(new GroupCountAggregationBuilder("groups", COLLAPSE_FIELD).missing(0))
+                    .aggregation(
+                        new GroupCountAggregationBuilder("price_groups")
+                            .script(new Script("doc['price'].size() == 0 ? 0 : Math.log1p(doc['price'].value)"))
+                    )
+                    .aggregation(new GroupCountAggregationBuilder("unmapped_groups", "unknown"))
+                    .size(0)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // Documents without a group fall into the missing group
+        InternalGroupCount groups = response.getAggregations().get("groups");
+        assertThat(groups.getValue(), equalTo(3L));
+        assertThat(groups.getMissing(), equalTo(0L));
+
+        // 4 different prices and a group of documents without a price
+        InternalGroupCount priceGroups = response.getAggregations().get("price_groups");
+        assertThat(priceGroups.getValue(), equalTo(5L));
+        assertThat(priceGroups.getMissing(), equalTo(0L));
+
+        InternalGroupCount unmappedGroups = response.getAggregations().get("unmapped_groups");
+        assertThat(unmappedGroups.getValue(), equalTo(7L));
+        assertThat(unmappedGroups.getMissing(), equalTo(7L));
+    }
+
+    public void testGroupCountCollectors() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        // Ordinal bitsets are much smaller than the default sketch
+        var groupsDebug = groupCountDebugInfo(
+            new GroupCountAggregationBuilder("groups", COLLAPSE_FIELD + ".keyword"), 4L
+        );
+        assertThat(groupsDebug.get("ordinals_collectors_used"), not(equalTo(0)));
+        assertThat(groupsDebug.get("ordinals_collectors_overhead_too_high"), equalTo(0));
+        assertThat(groupsDebug.get("hashing_collectors_used"), equalTo(0));
+
+        // The smallest sketch takes less memory than bitsets of any bucket
+        groupsDebug = groupCountDebugInfo(
+            new GroupCountAggregationBuilder("groups", COLLAPSE_FIELD + ".keyword").precisionThreshold(0), 4L
+        );
+        assertThat(groupsDebug.get("ordinals_collectors_used"), equalTo(0));
+        assertThat(groupsDebug.get("ordinals_collectors_overhead_too_high"), not(equalTo(0)));
+        assertThat(groupsDebug.get("hashing_collectors_used"), not(equalTo(0)));
+    }
+
+    private Map<String, Object> groupCountDebugInfo(GroupCountAggregationBuilder groupCount, long expectedGroups) {
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .aggregation(groupCount)
+                    .profile(true)
+                    .size(0)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        InternalGroupCount groups = response.getAggregations().get(groupCount.getName());
+        assertThat(groups.getValue(), equalTo(expectedGroups));
+
+        var shardResults = response.getProfileResults().values();
+        assertThat(shardResults, hasSize(1));
+        var aggregationResults = shardResults.iterator().next()
+            .getAggregationProfileResults()
+            .getProfileResults();
+        assertThat(aggregationResults, hasSize(1));
+        return aggregationResults.get(0).getDebugInfo();
+    }
+
+    private void checkGroupCount(String groupField) {
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .aggregation(new GroupCountAggregationBuilder("groups", groupField))
+                    .aggregation(
+                        AggregationBuilders.range("ranks")
+                            .field("rank")
+                            .addUnboundedTo(1.25)
+                            .addUnboundedFrom(1.25)
+                            .subAggregation(new GroupCountAggregationBuilder("groups", groupField))
+                    )
+                    .size(0)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // 2 groups and 2 documents without a group
+        InternalGroupCount groups = response.getAggregations().get("groups");
+        assertThat(groups.getValue(), equalTo(4L));
+        assertThat(groups.getMissing(), equalTo(2L));
+
+        Range ranks = response.getAggregations().get("ranks");
+        var buckets = ranks.getBuckets();
+        InternalGroupCount lowRankGroups = buckets.get(0).getAggregations().get("groups");
+        assertThat(lowRankGroups.getValue(), equalTo(2L));
+        InternalGroupCount highRankGroups = buckets.get(1).getAggregations().get("groups");
+        assertThat(highRankGroups.getValue(), equalTo(3L));
+    }
+
+    public void testLevels() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkLevels();
+    }
+
+    public void testLevelsMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkLevels();
+    }
+
+    private void checkLevels() {
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .addLevel(new GroupLevel(COMPANY_FIELD, 1))
+                    ))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // Model 2 is dropped as its company already has model 1 with a higher score
+        assertOrderedSearchHits(response, "5", "4", "3");
+
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .addLevel(new GroupLevel(COMPANY_FIELD, 2))
+                    ))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
+    }
+
+    public void testCompositeKey() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkCompositeKey(COLLAPSE_FIELD, COLOR_FIELD);
+        checkCompositeKey(COLLAPSE_FIELD + ".keyword", COLOR_FIELD);
+    }
+
+    public void testCompositeKeyMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkCompositeKey(COLLAPSE_FIELD, COLOR_FIELD);
+        checkCompositeKey(COLLAPSE_FIELD + ".keyword", COLOR_FIELD);
+    }
+
+    private void checkCompositeKey(String... groupFields) {
+        final var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(List.of(groupFields))
+                    ))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // Model 1 is split between 2 colors, documents without a model are not grouped
+        assertHitCount(response, 5);
+        assertOrderedSearchHits(response, "5", "4", "7", "3", "2");
+    }
+
+    public void testExclude() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkExclude(COLLAPSE_FIELD);
+        checkExclude(COLLAPSE_FIELD + ".keyword");
+    }
+
+    public void testExcludeUnsupportedField() throws IOException {
+        createAndPopulateTestIndex(1);
+
+        // Doc values of floating point fields do not match the values returned to a client
+        var request = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder("price")
+                            .exclude(new GroupBloomFilter.Builder(1024, 3).add("0.01").build())
+                    ))
+            );
+
+        assertFailures(
+            request,
+            RestStatus.BAD_REQUEST,
+            Matchers.containsString("[exclude] supports only keyword and integer fields, `price` is of type [float]")
+        );
+    }
+
+    private void checkExclude(String groupField) {
+        final var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(groupField)
+                            .exclude(new GroupBloomFilter.Builder(1024, 3).add("1").build())
+                    ))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 3);
+        assertOrderedSearchHits(response, "5", "3", "2");
+    }
+
+    public void testFieldSort() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkFieldSort();
+    }
+
+    public void testFieldSortReverse() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkFieldSortReverse();
+    }
+
+    public void testFieldSortMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkFieldSort();
+    }
+
+    public void testFieldSortReverseMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkFieldSortReverse();
+    }
+
+    public void testFieldSortMissingAndModeMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        // Routed to the same shard as document 4, while other documents of the group are on another shard
+        client().prepareIndex(INDEX_NAME, "_doc")
+            .setId("8")
+            .setRouting("4")
+            .setSource(
+                COLLAPSE_FIELD, 2,
+                "rank", 0.5F,
+                "price", List.of(1F, 20F)
+            )
+            .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+            .get();
+
+        // Missing values go first regardless of the order
+        checkGroupSort(SortBuilders.fieldSort("price").missing("_first"), "5", "4", "3", "8");
+        checkGroupSort(
+            SortBuilders.fieldSort("price").order(SortOrder.DESC).missing("_first"), "5", "4", "3", "8"
+        );
+        // Missing price is replaced with a value that is greater than any price of the group
+        checkGroupSort(SortBuilders.fieldSort("price").order(SortOrder.DESC).missing(10), "5", "4", "3", "8");
+        checkGroupSort(SortBuilders.fieldSort("price").missing(10), "5", "1", "3", "8");
+        // Multiple values are reduced by the sort mode
+        checkGroupSort(SortBuilders.fieldSort("price").sortMode(SortMode.MAX), "5", "1", "3", "6");
+        checkGroupSort(
+            SortBuilders.fieldSort("price").order(SortOrder.DESC).sortMode(SortMode.MIN), "5", "7", "3", "2"
+        );
+        checkGroupSort(SortBuilders.fieldSort("price").sortMode(SortMode.AVG), "5", "1", "3", "8");
+        checkGroupSort(
+            SortBuilders.fieldSort("price").order(SortOrder.DESC).sortMode(SortMode.SUM), "5", "7", "3", "8"
+        );
+    }
+
+    private void checkGroupSort(SortBuilder<?> sort, String... expectedIds) {
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD).addSort(sort)))
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, expectedIds);
+    }
+
+    public void testGroupLeadersCache() throws Exception {
+        // Every search must go to the same shard copy
+        createAndPopulateTestIndex(1, Settings.builder().put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 0));
+        final var priceSort = SortBuilders.fieldSort("price");
+
+        // Searches only look leaders up, missed leaders are built by the warmer
+        checkGroupSort(priceSort, "5", "1", "3", "6");
+        assertThat(groupLeadersStats().get("miss_count"), greaterThan(0L));
+        assertBusy(() -> assertThat(groupLeadersStats().get("count"), greaterThan(0L)));
+
+        var hits = groupLeadersStats().get("hit_count");
+        checkGroupSort(priceSort, "5", "1", "3", "6");
+        assertThat(groupLeadersStats().get("hit_count"), greaterThan(hits));
+
+        // Leaders of a segment without deletions must not be reused after a deletion
+        final var count = groupLeadersStats().get("count");
+        client().prepareDelete(INDEX_NAME, "_doc", "1")
+            .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+            .get();
+        checkGroupSort(priceSort, "5", "7", "3", "6");
+        assertBusy(() -> assertThat(groupLeadersStats().get("count"), greaterThan(count)));
+        hits = groupLeadersStats().get("hit_count");
+        checkGroupSort(priceSort, "5", "7", "3", "6");
+        assertThat(groupLeadersStats().get("hit_count"), greaterThan(hits));
+
+        // Leaders are evicted together with their segments
+        assertNoFailures(client().admin().indices().prepareForceMerge(INDEX_NAME).setMaxNumSegments(1).get());
+        assertBusy(() -> assertThat(groupLeadersStats().get("evictions"), greaterThan(0L)));
+        checkGroupSort(priceSort, "5", "7", "3", "6");
+
+        // Memory of the leaders is accounted by the circuit breaker
+        assertAcked(client().admin().indices().prepareDelete(INDEX_NAME));
+        assertBusy(() -> {
+            assertThat(groupLeadersStats().get("count"), equalTo(0L));
+            assertThat(groupLeadersStats().get("memory_size_in_bytes"), equalTo(0L));
+            for (var breakerService : internalCluster().getInstances(CircuitBreakerService.class)) {
+                assertThat(
+                    breakerService.getBreaker(GroupLeadersCache.CIRCUIT_BREAKER_NAME).getUsed(), equalTo(0L)
+                );
+            }
+        });
+    }
+
+    private Map<String, Long> groupLeadersStats() throws IOException {
+        final var stats = new HashMap<String, Long>();
+        for (var groupLeaders : internalCluster().getInstances(GroupLeadersCache.class)) {
+            for (var stat : toMap(groupLeaders).entrySet()) {
+                if (stat.getValue() instanceof Number) {
+                    stats.merge(stat.getKey(), ((Number) stat.getValue()).longValue(), Long::sum);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static long stat(ToXContent stats, String name) throws IOException {
+        return ((Number) toMap(stats).get(name)).longValue();
+    }
+
+    private static Map<String, Object> toMap(ToXContent stats) throws IOException {
+        return XContentHelper.convertToMap(
+            BytesReference.bytes(stats.toXContent(jsonBuilder(), ToXContent.EMPTY_PARAMS)),
+            false,
+            XContentType.JSON
+        ).v2();
+    }
+
+    public void testFieldSortSortedIndex() throws IOException {
+        createAndPopulateTestIndex(
+            2,
+            Settings.builder()
+                .putList("index.sort.field", COLLAPSE_FIELD, "price")
+                .putList("index.sort.order", "asc", "asc")
+        );
+        // Index sort is compatible with the group sort
+        checkFieldSort();
+        // Index sort is not compatible, so regular collapsing is used
+        checkFieldSortReverse();
+    }
+
+    public void testWarmFields() throws Exception {
+        createAndPopulateTestIndex(
+            2,
+            Settings.builder()
+                .putList(CollapseFieldsWarmer.INDEX_COLLAPSE_WARM_FIELDS.getKey(), COLLAPSE_FIELD, COLOR_FIELD)
+        );
+        // Nothing is sorted or aggregated by the color, so only the warmer could build its global ordinals.
+        // Numeric doc values of the collapse field are not cached, thus they do not show up in the stats
+        assertBusy(() -> {
+            final var stats = client().admin().indices().prepareStats(INDEX_NAME)
+                .clear()
+                .setFieldData(true)
+                .setFieldDataFields(COLOR_FIELD)
+                .get();
+            assertThat(stats.getTotal().getFieldData().getFields().get(COLOR_FIELD), greaterThan(0L));
+        });
+        checkFieldSort();
+    }
+
+    public void testWarmFieldsSearchIdle() throws Exception {
+        createAndPopulateTestIndex(
+            2,
+            Settings.builder()
+                .putList(CollapseFieldsWarmer.INDEX_COLLAPSE_WARM_FIELDS.getKey(), COLLAPSE_FIELD, COLOR_FIELD)
+                .put(IndexSettings.INDEX_SEARCH_IDLE_AFTER.getKey(), "1s")
+        );
+        // The warmer must not keep shards from going search idle
+        assertBusy(() -> {
+            var numShards = 0;
+            for (var indicesService : internalCluster().getDataNodeInstances(IndicesService.class)) {
+                for (var indexService : indicesService) {
+                    if (!indexService.index().getName().equals(INDEX_NAME)) {
+                        continue;
+                    }
+                    for (var shard : indexService) {
+                        assertTrue(shard.shardId() + " is not search idle", shard.isSearchIdle());
+                        numShards++;
+                    }
+                }
+            }
+            assertThat(numShards, greaterThanOrEqualTo(2));
+        });
+    }
+
+    public void testReplayWarmer() throws Exception {
+        final var secureSettings = new MockSecureSettings();
+        secureSettings.setString(CollapseReplayWarmer.COLLAPSE_REPLAY_AUTHORIZATION.getKey(), "ApiKey replay");
+        final var node = startReplayNode(
+            Settings.builder()
+                .setSecureSettings(secureSettings)
+        );
+        createReplayIndex(node);
+
+        replayedSearch(node);
+        // Nothing else searches the index, so only the replay queries the shards after a refresh
+        final var queries = queryCount();
+        indexAndRefresh(node);
+        assertBusy(() -> assertThat(queryCount(), greaterThan(queries)));
+
+        // The sample is kept only in memory by default,
+        // data paths of the stopped nodes can be reused by a new node
+        Files.deleteIfExists(replaySampleFile(node));
+        internalCluster().getInstance(CollapseReplayWarmer.class, node).store();
+        assertFalse(Files.exists(replaySampleFile(node)));
+    }
+
+    public void testReplayWarmerCoordinatingOnly() throws Exception {
+        final var node = internalCluster().startCoordinatingOnlyNode(
+            Settings.builder()
+                .put(CollapseReplayWarmer.COLLAPSE_REPLAY_MAX_REQUESTS.getKey(), 10)
+                .put(CollapseReplayWarmer.COLLAPSE_REPLAY_MIN_INTERVAL.getKey(), "0s")
+                .build()
+        );
+        createAndPopulateTestIndex(2);
+
+        // A node without shards has no indices to warm, so it does not sample requests
+        replayedSearch(node);
+        final var replayWarmer = internalCluster().getInstance(CollapseReplayWarmer.class, node);
+        assertFalse(replayWarmer.enabled());
+        assertFalse(replayWarmer.hasSamples(resolveIndex(INDEX_NAME)));
+    }
+
+    public void testReplayWarmerPersist() throws Exception {
+        final var node = startReplayNode(
+            Settings.builder()
+                .put(CollapseReplayWarmer.COLLAPSE_REPLAY_PERSIST.getKey(), true)
+        );
+        createReplayIndex(node);
+
+        replayedSearch(node);
+        internalCluster().getInstance(CollapseReplayWarmer.class, node).store();
+        final var sample = Files.readString(replaySampleFile(node));
+        assertThat(sample, containsString(COLLAPSE_FIELD));
+        // Headers are not sampled
+        assertThat(sample, not(containsString("replay-opaque-id")));
+
+        // The stored sample is replayed after a restart when the shards get their first readers,
+        // search stats of the shards start from zero
+        internalCluster().restartNode(node);
+        ensureGreen(INDEX_NAME);
+        assertBusy(() -> assertThat(queryCount(), greaterThan(0L)));
+    }
+
+    private String startReplayNode(Settings.Builder settings) {
+        // Secure settings cannot be passed to startDataOnlyNode, it merges them twice
+        return internalCluster().startNode(
+            NodeRoles.dataOnlyNode(
+                settings
+                    .put(CollapseReplayWarmer.COLLAPSE_REPLAY_MAX_REQUESTS.getKey(), 10)
+                    .put(CollapseReplayWarmer.COLLAPSE_REPLAY_MIN_INTERVAL.getKey(), "0s")
+                    .build()
+            )
+        );
+    }
+
+    private void createReplayIndex(String node) throws IOException {
+        // Replays search only the local shards, so all the shards are placed on the replaying node
+        createAndPopulateTestIndex(
+            2,
+            Settings.builder()
+                .put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 0)
+                .put(IndexMetadata.INDEX_ROUTING_REQUIRE_GROUP_PREFIX + "._name", node)
+        );
+    }
+
+    private void indexAndRefresh(String node) {
+        client(node).prepareIndex(INDEX_NAME, "_doc")
+            .setId("8")
+            .setSource(COLLAPSE_FIELD, 3, "rank", 0.8F)
+            .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+            .get();
+    }
+
+    private void replayedSearch(String node) {
+        final var response = client(node)
+            .filterWithHeader(Map.of(Task.X_OPAQUE_ID, "replay-opaque-id"))
+            .prepareSearch(INDEX_NAME)
             .setSource(
                 new SearchSourceBuilder()
-                    .query(queryBuilder)
+                    .query(rankQuery())
                     .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
             )
             .get();
-
         assertSearchResponse(response);
+        assertHitCount(response, 4);
     }
 
-    public void testUnknownField() throws IOException {
-        createTestIndex(1);
+    private long queryCount() {
+        return client().admin().indices().prepareStats(INDEX_NAME)
+            .clear()
+            .setSearch(true)
+            .get()
+            .getTotal()
+            .getSearch()
+            .getTotal()
+            .getQueryCount();
+    }
 
-        var request = client().prepareSearch(INDEX_NAME)
-            .setSource(
-                new SearchSourceBuilder()
-                    .query(rankQuery())
-                    .ext(List.of(new CollapseSearchExtBuilder("missing_field")))
-            );
+    private Path replaySampleFile(String node) {
+        return internalCluster().getInstance(NodeEnvironment.class, node)
+            .nodeDataPaths()[0]
+            .resolve(CollapseReplayWarmer.SAMPLE_FILE_NAME);
+    }
 
-        assertFailures(
-            request,
-            RestStatus.BAD_REQUEST,
-            Matchers.containsString("no mapping found for `missing_field`")
-        );
+    public void testScriptSort() throws IOException {
+        createAndPopulateTestIndex(1);
+        checkScriptSort();
     }
 
-    public void testEmptySearchSource() throws IOException {
+    public void testScriptSortMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkScriptSort();
+    }
+
+    public void testMultipleSort() throws IOException {
         createAndPopulateTestIndex(1);
+        checkMultipleSort();
+    }
+
+    public void testMultipleSortMerge() throws IOException {
+        createAndPopulateTestIndex(2);
+        checkMultipleSort();
+    }
 
+    private void checkMultipleSort() {
         var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .addSort(SortBuilders.fieldSort(COLOR_FIELD))
+                            .addSort(SortBuilders.fieldSort("price"))
+                    ))
+            )
             .get();
 
         assertSearchResponse(response);
 
-        assertHitCount(response, 7);
-    }
-
-    public void testDefaultCollapsing() throws IOException {
-        createAndPopulateTestIndex(1);
+        // Color decides for model 1, price breaks the tie for model 2
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, "5", "7", "3", "6");
 
-        var response = client().prepareSearch(INDEX_NAME)
+        response = client().prepareSearch(INDEX_NAME)
             .setSource(
                 new SearchSourceBuilder()
                     .query(rankQuery())
-                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .addSort(SortBuilders.fieldSort(COLOR_FIELD).order(SortOrder.DESC))
+                            .addSort(SortBuilders.scriptSort(
+                                new Script(
+                                    "doc['price'].size() == 0 ? 0 : Math.log1p(doc['price'].value)"
+                                ),
+                                ScriptSortBuilder.ScriptSortType.NUMBER
+                            ).order(SortOrder.DESC))
+                    ))
             )
             .get();
 
         assertSearchResponse(response);
 
         assertHitCount(response, 4);
-        assertOrderedSearchHits(response, "5", "4", "3", "2");
+        assertOrderedSearchHits(response, "5", "1", "3", "2");
+        assertSearchHit(response, 2, hasFields());
 
-        assertSearchHit(
-            response, 1,
-            hasFields(
-                new DocumentField("model_id", List.of())
-            )
-        );
-        assertSearchHit(
-            response, 2,
-            hasFields(
-                new DocumentField("model_id", List.of(1L))
-            )
+        final var priceScript = new Script(
+            "doc['price'].size() == 0 ? 0 : Math.log1p(doc['price'].value)"
         );
-        assertSearchHit(
-            response, 3,
-            hasFields(
-                new DocumentField("model_id", List.of())
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .addSort(SortBuilders.fieldSort(COLOR_FIELD).order(SortOrder.DESC))
+                            .addSort(SortBuilders.scriptSort(
+                                priceScript, ScriptSortBuilder.ScriptSortType.NUMBER
+                            ).order(SortOrder.DESC))
+                    ))
+                    .docValueField(COLLAPSE_FIELD)
+                    .docValueField(COLOR_FIELD)
+                    .scriptField("price_log", priceScript)
             )
-        );
+            .get();
+
+        assertSearchResponse(response);
+
+        // Requested fields hold the values the group was sorted by
+        assertOrderedSearchHits(response, "5", "1", "3", "2");
         assertSearchHit(
-            response, 4,
+            response, 2,
             hasFields(
-                new DocumentField("model_id", List.of(2L))
+                new DocumentField("model_id", List.of(1L)),
+                new DocumentField(COLOR_FIELD, List.of("red")),
+                new DocumentField("price_log", List.of(Math.log1p(0.01F)))
             )
         );
     }
 
-    public void testCollapsingSize() throws IOException {
-        createAndPopulateTestIndex(1);
-
+    private void checkMaxPerGroup() {
         var response = client().prepareSearch(INDEX_NAME)
             .setSource(
                 new SearchSourceBuilder()
                     .query(rankQuery())
-                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
-                    .size(2)
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .maxPerGroup(2)
+                    ))
             )
             .get();
 
         assertSearchResponse(response);
 
-        assertHitCount(response, 4);
-        assertOrderedSearchHits(response, "5", "4");
-    }
+        assertHitCount(response, 6);
+        assertOrderedSearchHits(response, "5", "4", "7", "3", "2", "6");
 
-    public void testDisabledPagination() throws IOException {
-        createAndPopulateTestIndex(1);
+        // Hits of a group share the score of the best hit
+        assertSearchHit(response, 3, hasScore(1.4F));
+        assertSearchHit(response, 6, hasScore(1.2F));
+    }
 
+    private void checkTrackGroupSize() {
         var response = client().prepareSearch(INDEX_NAME)
             .setSource(
                 new SearchSourceBuilder()
                     .query(rankQuery())
                     .ext(List.of(
                         new CollapseSearchExtBuilder(COLLAPSE_FIELD)
-                            .pagination(false)
+                            .trackGroupSize(true)
                     ))
-                    .size(2)
             )
             .get();
 
@@ -196,87 +2054,85 @@ public class CollapseRescorerIT extends ESIntegTestCase {
 
         assertHitCount(response, 4);
         assertOrderedSearchHits(response, "5", "4", "3", "2");
-    }
 
-    public void testMerge() throws IOException {
-        createAndPopulateTestIndex(2);
-
-        // Ensure docs fell into different shards
-        var response = client().prepareSearch(INDEX_NAME)
-            .setQuery(QueryBuilders.idsQuery().addIds("4"))
-            .setPreference("_shards:1")
-            .get();
-        assertSearchResponse(response);
-        assertHitCount(response, 1);
-
-        response = client().prepareSearch(INDEX_NAME)
-            .setQuery(QueryBuilders.idsQuery().addIds("7"))
-            .setPreference("_shards:0")
-            .get();
-        assertSearchResponse(response);
-        assertHitCount(response, 1);
+        assertSearchHit(response, 1, hasFields());
+        assertSearchHit(
+            response, 2,
+            hasFields(
+                new DocumentField("_group_size", List.of(3))
+            )
+        );
+        assertSearchHit(
+            response, 4,
+            hasFields(
+                new DocumentField("_group_size", List.of(2))
+            )
+        );
 
         response = client().prepareSearch(INDEX_NAME)
             .setSource(
                 new SearchSourceBuilder()
                     .query(rankQuery())
-                    .ext(List.of(new CollapseSearchExtBuilder(COLLAPSE_FIELD)))
-                    .size(2)
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .trackGroupSize(true)
+                    ))
+                    .docValueField(COLLAPSE_FIELD)
             )
             .get();
 
         assertSearchResponse(response);
 
-        assertHitCount(response, 4);
-        assertOrderedSearchHits(response, "5", "4");
-    }
-
-    public void testFieldSort() throws IOException {
-        createAndPopulateTestIndex(1);
-        checkFieldSort();
-    }
-
-    public void testFieldSortReverse() throws IOException {
-        createAndPopulateTestIndex(1);
-        checkFieldSortReverse();
-    }
-
-    public void testFieldSortMerge() throws IOException {
-        createAndPopulateTestIndex(2);
-        checkFieldSort();
-    }
-
-    public void testFieldSortReverseMerge() throws IOException {
-        createAndPopulateTestIndex(2);
-        checkFieldSortReverse();
-    }
+        assertOrderedSearchHits(response, "5", "4", "3", "2");
 
-    public void testScriptSort() throws IOException {
-        createAndPopulateTestIndex(1);
-        checkScriptSort();
+        assertSearchHit(
+            response, 1,
+            hasFields(
+                new DocumentField("model_id", List.of())
+            )
+        );
+        assertSearchHit(
+            response, 2,
+            hasFields(
+                new DocumentField("model_id", List.of(1L)),
+                new DocumentField("_group_size", List.of(3))
+            )
+        );
+        assertSearchHit(
+            response, 4,
+            hasFields(
+                new DocumentField("model_id", List.of(2L)),
+                new DocumentField("_group_size", List.of(2))
+            )
+        );
     }
 
-    public void testScriptSortMerge() throws IOException {
-        createAndPopulateTestIndex(2);
-        checkScriptSort();
-    }
+    private SearchResponse checkScoreMode(
+        GroupScoreMode scoreMode, List<String> expectedIds, double expectedMaxScore
+    ) {
+        var response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .scoreMode(scoreMode)
+                    ))
+                    .size(expectedIds.size())
+            )
+            .get();
 
-    public void testMultipleSort() throws IOException {
-        createAndPopulateTestIndex(1);
+        assertSearchResponse(response);
 
-        assertRequestBuilderThrows(
-            client().prepareSearch(INDEX_NAME)
-                .setSource(
-                    new SearchSourceBuilder()
-                        .query(rankQuery())
-                        .ext(List.of(
-                            new CollapseSearchExtBuilder(COLLAPSE_FIELD)
-                                .addSort(SortBuilders.fieldSort("price"))
-                                .addSort(SortBuilders.fieldSort("rank"))
-                        ))
-                ),
-            RestStatus.BAD_REQUEST
-        );
+        assertHitCount(response, 4);
+        assertOrderedSearchHits(response, expectedIds.toArray(new String[0]));
+        assertThat((double) response.getHits().getAt(0).getScore(), closeTo(expectedMaxScore, 1e-5));
+        assertThat((double) response.getHits().getMaxScore(), closeTo(expectedMaxScore, 1e-5));
+        // Group statistics passed by shards must not leak into the response
+        for (var hit : response.getHits()) {
+            assertThat(hit.getSortValues(), emptyArray());
+        }
+        return response;
     }
 
     private void checkFieldSort() {
@@ -288,6 +2144,8 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                         new CollapseSearchExtBuilder(COLLAPSE_FIELD)
                             .addSort(SortBuilders.fieldSort("price"))
                     ))
+                    .docValueField(COLLAPSE_FIELD)
+                    .docValueField("price")
             )
             .get();
 
@@ -302,6 +2160,7 @@ public class CollapseRescorerIT extends ESIntegTestCase {
         assertSearchHit(response, 3, hasScore(1.3F));
         assertSearchHit(response, 4, hasScore(1.2F));
 
+        // Requested fields are kept in the response
         assertSearchHit(
             response, 1,
             hasFields(
@@ -341,6 +2200,7 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                         new CollapseSearchExtBuilder(COLLAPSE_FIELD)
                             .addSort(SortBuilders.fieldSort("price").order(SortOrder.DESC))
                     ))
+                    .docValueField("price")
             )
             .get();
 
@@ -355,37 +2215,34 @@ public class CollapseRescorerIT extends ESIntegTestCase {
         assertSearchHit(response, 3, hasScore(1.3F));
         assertSearchHit(response, 4, hasScore(1.2F));
 
+        // Only the group field is removed as it was not requested
         assertSearchHit(
             response, 1,
             hasFields(
-                new DocumentField("model_id", List.of()),
                 new DocumentField("price", List.of())
             )
         );
         assertSearchHit(
             response, 2,
             hasFields(
-                new DocumentField("model_id", List.of(1L)),
                 new DocumentField("price", List.of(Float.valueOf(9.99F).doubleValue()))
             )
         );
         assertSearchHit(
             response, 3,
             hasFields(
-                new DocumentField("model_id", List.of()),
                 new DocumentField("price", List.of())
             )
         );
         assertSearchHit(
             response, 4,
             hasFields(
-                new DocumentField("model_id", List.of(2L)),
                 new DocumentField("price", List.of(12.0))
             )
         );
     }
 
-    private void checkScriptSort() {
+    private void checkScriptSort() throws IOException {
         var response = client().prepareSearch(INDEX_NAME)
             .setSource(
                 new SearchSourceBuilder()
@@ -413,41 +2270,74 @@ public class CollapseRescorerIT extends ESIntegTestCase {
         assertSearchHit(response, 3, hasScore(1.3F));
         assertSearchHit(response, 4, hasScore(1.2F));
 
+        // Script sort values are calculated only for collapsing
+        for (var hit : response.getHits()) {
+            assertThat(hit, hasFields());
+            // Hits rebuilt without the fields keep their type
+            assertThat(toMap(hit).get("_type"), equalTo("_doc"));
+        }
+
+        final var priceScript = new Script(
+            "doc['price'].size() == 0 ? 0 : Math.log1p(doc['price'].value)"
+        );
+        response = client().prepareSearch(INDEX_NAME)
+            .setSource(
+                new SearchSourceBuilder()
+                    .query(rankQuery())
+                    .ext(List.of(
+                        new CollapseSearchExtBuilder(COLLAPSE_FIELD)
+                            .addSort(SortBuilders.scriptSort(
+                                priceScript, ScriptSortBuilder.ScriptSortType.NUMBER
+                            ))
+                    ))
+                    .docValueField(COLLAPSE_FIELD)
+                    .scriptField("price_log", priceScript)
+            )
+            .get();
+
+        assertSearchResponse(response);
+
+        // Requested fields hold the values the groups were sorted by
+        assertOrderedSearchHits(response, "5", "4", "3", "6");
         assertSearchHit(
             response, 1,
             hasFields(
                 new DocumentField("model_id", List.of()),
-                new DocumentField("_collapse_script_sort", List.of(0.0))
+                new DocumentField("price_log", List.of(0.0))
             )
         );
         assertSearchHit(
             response, 2,
             hasFields(
                 new DocumentField("model_id", List.of(1L)),
-                new DocumentField("_collapse_script_sort", List.of(0.0))
+                new DocumentField("price_log", List.of(0.0))
             )
         );
         assertSearchHit(
             response, 3,
             hasFields(
                 new DocumentField("model_id", List.of()),
-                new DocumentField("_collapse_script_sort", List.of(0.0))
+                new DocumentField("price_log", List.of(0.0))
             )
         );
         assertSearchHit(
             response, 4,
             hasFields(
                 new DocumentField("model_id", List.of(2L)),
-                new DocumentField("_collapse_script_sort", List.of(2.4849066497880004))
+                new DocumentField("price_log", List.of(2.4849066497880004))
             )
         );
     }
 
     private void createTestIndex(int numberOfShards) throws IOException {
+        createTestIndex(numberOfShards, Settings.builder());
+    }
+
+    private void createTestIndex(int numberOfShards, Settings.Builder settings) throws IOException {
         assertAcked(
             prepareCreate(INDEX_NAME)
                 .setSettings(
-                    Settings.builder().put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, numberOfShards)
+                    settings.put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, numberOfShards)
                 )
                 .addMapping("_doc", testMapping())
         );
@@ -455,7 +2345,11 @@ public class CollapseRescorerIT extends ESIntegTestCase {
     }
 
     private void createAndPopulateTestIndex(int numberOfShards) throws IOException {
-        createTestIndex(numberOfShards);
+        createAndPopulateTestIndex(numberOfShards, Settings.builder());
+    }
+
+    private void createAndPopulateTestIndex(int numberOfShards, Settings.Builder settings) throws IOException {
+        createTestIndex(numberOfShards, settings);
         for (var docs : testDocs()) {
             final var bulk = client().prepareBulk().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
             for (var doc : docs) {
@@ -479,6 +2373,17 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                     .startObject("properties")
                         .startObject(COLLAPSE_FIELD)
                             .field("type", "integer")
+                            .startObject("fields")
+                                .startObject("keyword")
+                                    .field("type", "keyword")
+                                .endObject()
+                            .endObject()
+                        .endObject()
+                        .startObject(COMPANY_FIELD)
+                            .field("type", "integer")
+                        .endObject()
+                        .startObject(COLOR_FIELD)
+                            .field("type", "keyword")
                         .endObject()
                         .startObject("rank")
                             .field("type", "float")
@@ -497,6 +2402,8 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                 client().prepareIndex()
                     .setId("1")
                     .setSource(
+                        COLOR_FIELD, "red",
+                        COMPANY_FIELD, 1,
                         COLLAPSE_FIELD, 1,
                         "rank", 1.1F,
                         "price", 0.01F
@@ -504,6 +2411,8 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                 client().prepareIndex()
                     .setId("2")
                     .setSource(
+                        COLOR_FIELD, "red",
+                        COMPANY_FIELD, 1,
                         COLLAPSE_FIELD, 2,
                         "rank", 1.2F,
                         "price", 12F
@@ -511,11 +2420,14 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                 client().prepareIndex()
                     .setId("3")
                     .setSource(
+                        COMPANY_FIELD, 2,
                         "rank", 1.3F
                     ),
                 client().prepareIndex()
                     .setId("4")
                     .setSource(
+                        COLOR_FIELD, "red",
+                        COMPANY_FIELD, 1,
                         COLLAPSE_FIELD, 1,
                         "rank", 1.4F
                     )
@@ -529,6 +2441,8 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                 client().prepareIndex()
                     .setId("6")
                     .setSource(
+                        COLOR_FIELD, "red",
+                        COMPANY_FIELD, 1,
                         COLLAPSE_FIELD, 2,
                         "rank", 0.6F,
                         "price", 11F
@@ -536,6 +2450,8 @@ public class CollapseRescorerIT extends ESIntegTestCase {
                 client().prepareIndex()
                     .setId("7")
                     .setSource(
+                        COLOR_FIELD, "blue",
+                        COMPANY_FIELD, 1,
                         COLLAPSE_FIELD, 1,
                         "rank", 1.39F,
                         "price", 9.99F